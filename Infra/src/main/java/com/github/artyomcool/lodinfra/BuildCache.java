@@ -0,0 +1,195 @@
+package com.github.artyomcool.lodinfra;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Persistent storage of converted and compressed payloads keyed by content hash of their source.
+ * Every entry is a separate file, last modification time is used as an access time for LRU eviction.
+ */
+public class BuildCache implements Closeable {
+
+    private static final int MAGIC = 0x3143424c;    // LBC1 in little endian
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final Path dir;
+    private final long maxSize;
+
+    public BuildCache(Path dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return stored payload or null if there is no such entry
+     */
+    public ByteBuffer get(ContentHash key) {
+        Path path = pathOf(key);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 8 || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    return null;
+                }
+            }
+            buffer.flip();
+            if (buffer.getInt() != MAGIC || buffer.getInt() != buffer.remaining()) {
+                return null;
+            }
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            return buffer.slice();
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public void put(ContentHash key, ByteBuffer payload) {
+        Path path = pathOf(key);
+        Path temp = path.resolveSibling(path.getFileName() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            Files.createDirectories(path.getParent());
+            try (FileChannel channel = FileChannel.open(
+                    temp,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING
+            )) {
+                ByteBuffer header = ByteBuffer.allocate(8);
+                header.putInt(MAGIC).putInt(payload.remaining()).flip();
+                ByteBuffer[] buffers = {header, payload.asReadOnlyBuffer()};
+                while (buffers[1].hasRemaining() || header.hasRemaining()) {
+                    channel.write(buffers);
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // cache is optional, build should not fail because of it
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Marks the key as processed without a result, e.g. resource that is not worth to compress.
+     */
+    public void putEmpty(ContentHash key) {
+        put(key, EMPTY);
+    }
+
+    public List<Resource> getResources(ContentHash key, Path holderPath) {
+        ByteBuffer buffer = get(key);
+        if (buffer == null) {
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(buffer.array(), buffer.arrayOffset(), buffer.remaining()))) {
+            int count = input.readInt();
+            List<Resource> resources = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int type = input.readInt();
+                String lang = input.readUTF();
+                String name = input.readUTF();
+                byte[] data = new byte[input.readInt()];
+                input.readFully(data);
+                resources.add(new Resource(
+                        type,
+                        lang,
+                        name,
+                        Resource.sanitizeName(name),
+                        holderPath + ":" + name,
+                        ByteBuffer.wrap(data),
+                        0
+                ));
+            }
+            return resources;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public void putResources(ContentHash key, List<Resource> resources) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(bytes);
+            output.writeInt(resources.size());
+            for (Resource resource : resources) {
+                output.writeInt(resource.type);
+                output.writeUTF(resource.lang);
+                output.writeUTF(resource.name);
+                output.writeInt(resource.data.remaining());
+                byte[] data = new byte[resource.data.remaining()];
+                resource.data.asReadOnlyBuffer().get(data);
+                output.write(data);
+            }
+            output.flush();
+            put(key, ByteBuffer.wrap(bytes.toByteArray()));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Evicts least recently used entries until the cache fits into the max size.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+
+        record Entry(Path path, long size, FileTime accessed) {
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                entries.add(new Entry(file, attrs.size(), attrs.lastModifiedTime()));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        long size = entries.stream().mapToLong(Entry::size).sum();
+        if (size <= maxSize) {
+            return;
+        }
+
+        entries.sort(Comparator.comparing(Entry::accessed));
+        for (Entry entry : entries) {
+            if (size <= maxSize) {
+                break;
+            }
+            Files.deleteIfExists(entry.path);
+            size -= entry.size;
+        }
+
+        try (Stream<Path> subDirs = Files.list(dir)) {
+            for (Path subDir : subDirs.toList()) {
+                try (Stream<Path> content = Files.list(subDir)) {
+                    if (content.findAny().isEmpty()) {
+                        Files.deleteIfExists(subDir);
+                    }
+                }
+            }
+        }
+    }
+
+    private Path pathOf(ContentHash key) {
+        String name = key.toString();
+        return dir.resolve(name.substring(0, 2)).resolve(name);
+    }
+}
@@ -0,0 +1,215 @@
+package com.github.artyomcool.lodinfra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 128-bit non-cryptographic hash (MurmurHash3 x64_128), good enough to find out that content is unchanged.
+ */
+public record ContentHash(long lo, long hi) {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final int CHUNK = 1 << 20;
+
+    public static ContentHash of(byte[] data) {
+        return of(ByteBuffer.wrap(data));
+    }
+
+    public static ContentHash of(ByteBuffer data) {
+        return of(data, 0);
+    }
+
+    public static ContentHash of(ByteBuffer data, long seed) {
+        ByteBuffer buffer = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int start = buffer.position();
+        int length = buffer.remaining();
+
+        State state = new State(seed);
+        int blocksEnd = state.blocks(buffer, start, length);
+        return state.finish(buffer, blocksEnd, length & 15, length);
+    }
+
+    /**
+     * Same as hash of the whole file, but the file is read in chunks, so it may be of any size.
+     */
+    public static ContentHash of(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+            State state = new State(0);
+            long length = 0;
+            while (true) {
+                chunk.clear();
+                while (chunk.hasRemaining() && channel.read(chunk) >= 0) {
+                    // read till the chunk is full or the file is over
+                }
+                chunk.flip();
+                length += chunk.remaining();
+                // chunk is a multiple of a block, so only the last one has a tail
+                int blocksEnd = state.blocks(chunk, 0, chunk.remaining());
+                if (chunk.remaining() < CHUNK) {
+                    return state.finish(chunk, blocksEnd, chunk.remaining() & 15, length);
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as hash of the little-endian bytes of the ints, but reads the ints in place.
+     */
+    public static ContentHash of(IntBuffer data) {
+        IntBuffer buffer = data.duplicate();
+        int start = buffer.position();
+        int length = buffer.remaining();
+        int blocksEnd = start + (length & ~3);
+
+        long h1 = 0;
+        long h2 = 0;
+
+        for (int i = start; i < blocksEnd; i += 4) {
+            h1 ^= mixK1(pair(buffer.get(i), buffer.get(i + 1)));
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(pair(buffer.get(i + 2), buffer.get(i + 3)));
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int tail = length & 3;
+        if (tail > 2) {
+            h2 ^= mixK2(buffer.get(blocksEnd + 2) & 0xffffffffL);
+        }
+        if (tail > 1) {
+            h1 ^= mixK1(pair(buffer.get(blocksEnd), buffer.get(blocksEnd + 1)));
+        } else if (tail > 0) {
+            h1 ^= mixK1(buffer.get(blocksEnd) & 0xffffffffL);
+        }
+
+        return finish(h1, h2, length * 4L);
+    }
+
+    /**
+     * Hash of this hash and a kind, to key different artifacts produced from the same content.
+     */
+    public ContentHash derive(String kind) {
+        byte[] kindBytes = kind.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(16 + kindBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putLong(lo).putLong(hi).put(kindBytes).flip();
+        return of(buffer);
+    }
+
+    public static ContentHash parse(String hex) {
+        if (hex == null || hex.length() != 32) {
+            return null;
+        }
+        try {
+            return new ContentHash(Long.parseUnsignedLong(hex, 16, 32, 16), Long.parseUnsignedLong(hex, 0, 16, 16));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x%016x", hi, lo);
+    }
+
+    private static final class State {
+        long h1;
+        long h2;
+
+        State(long seed) {
+            h1 = seed;
+            h2 = seed;
+        }
+
+        /**
+         * @return end of the last whole block
+         */
+        int blocks(ByteBuffer buffer, int start, int length) {
+            int blocksEnd = start + (length & ~15);
+            long h1 = this.h1;
+            long h2 = this.h2;
+
+            for (int i = start; i < blocksEnd; i += 16) {
+                h1 ^= mixK1(buffer.getLong(i));
+                h1 = Long.rotateLeft(h1, 27) + h2;
+                h1 = h1 * 5 + 0x52dce729;
+
+                h2 ^= mixK2(buffer.getLong(i + 8));
+                h2 = Long.rotateLeft(h2, 31) + h1;
+                h2 = h2 * 5 + 0x38495ab5;
+            }
+
+            this.h1 = h1;
+            this.h2 = h2;
+            return blocksEnd;
+        }
+
+        ContentHash finish(ByteBuffer buffer, int blocksEnd, int tail, long length) {
+            if (tail > 8) {
+                long k2 = 0;
+                for (int i = tail - 1; i >= 8; i--) {
+                    k2 ^= (long) (buffer.get(blocksEnd + i) & 0xff) << ((i - 8) * 8);
+                }
+                h2 ^= mixK2(k2);
+            }
+            if (tail > 0) {
+                long k1 = 0;
+                for (int i = Math.min(tail, 8) - 1; i >= 0; i--) {
+                    k1 ^= (long) (buffer.get(blocksEnd + i) & 0xff) << (i * 8);
+                }
+                h1 ^= mixK1(k1);
+            }
+            return ContentHash.finish(h1, h2, length);
+        }
+    }
+
+    private static long pair(int low, int high) {
+        return (low & 0xffffffffL) | (long) high << 32;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static ContentHash finish(long h1, long h2, long length) {
+        h1 ^= length;
+        h2 ^= length;
+
+        h1 += h2;
+        h2 += h1;
+
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+
+        h1 += h2;
+        h2 += h1;
+
+        return new ContentHash(h1, h2);
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -1,9 +1,8 @@
 package com.github.artyomcool.lodinfra;
 
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
-
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.PrintStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.*;
@@ -11,12 +10,21 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.zip.DataFormatException;
 
 public class DirectoryResourceCollector {
 
+    // bump versions when conversion or extraction output changes
+    private static final String XLS_CACHE_KIND = "xlsx:2";
+    private static final String CONVERSION_CACHE_KIND = "convert:1:";
+
     public final Path dir;
     public final String pathPattern;
 
@@ -27,8 +35,13 @@ public class DirectoryResourceCollector {
     public Map<String, String> previouslyModifiedAt = null;
     public Map<String, String> nowModifiedAt = null;
     public int compressionLevel = 0;
+    public boolean updateLodsInPlace = false;
+    public double maxLodDeadSpace = 0.25;
     public Set<String> allowedLangs = new HashSet<>();
     public Set<String> dontWarnAboutNames = new HashSet<>();
+    public BuildCache buildCache = null;
+    public int xlsThreads = Runtime.getRuntime().availableProcessors();
+    public int packThreads = Runtime.getRuntime().availableProcessors();
 
     public DirectoryResourceCollector(Path dir, String pathPattern) {
         this.dir = dir;
@@ -92,55 +105,70 @@ public class DirectoryResourceCollector {
         int ignored = 0;
         int changed = 0;
 
-        for (Map.Entry<String, List<Path>> entry : xlsFilesByLodName.entrySet()) {
-            String lodName = entry.getKey();
-            for (Path xlsPath : entry.getValue()) {
-                String resourceName = Resource.resourceName(xlsPath);
-                if (previouslyModifiedAt != null) {
-                    Instant lastModifiedTime = Files.getLastModifiedTime(xlsPath).toInstant();
-                    Instant previously = parseInstant(previouslyModifiedAt.get(lodName + "^" + resourceName));
-                    currentResourcesTimestamps.put(lodName + "^" + resourceName, lastModifiedTime.toString());
-                    if (lastModifiedTime.equals(previously)) {
-                        String childrenKey = lodName + "^" + resourceName + ":children";
-                        String children = previouslyModifiedAt.get(childrenKey);
-                        if (children != null) {
-                            for (String child : children.split(",")) {
-                                String name = lodName + "^" + child;
-                                currentResourcesTimestamps.put(name, "!");
+        // workbooks are parsed concurrently, but results are merged in the same order as they were submitted
+        List<XlsJob> xlsJobs = new ArrayList<>();
+        ForkJoinPool xlsPool = new ForkJoinPool(Math.max(xlsThreads, 1));
+        try {
+            for (Map.Entry<String, List<Path>> entry : xlsFilesByLodName.entrySet()) {
+                String lodName = entry.getKey();
+                for (Path xlsPath : entry.getValue()) {
+                    String resourceName = Resource.resourceName(xlsPath);
+                    ContentHash hash = null;
+                    if (previouslyModifiedAt != null) {
+                        Instant lastModifiedTime = Files.getLastModifiedTime(xlsPath).toInstant();
+                        String previousState = previouslyModifiedAt.get(lodName + "^" + resourceName);
+                        Instant previously = parseInstant(previousState);
+                        boolean unchanged = lastModifiedTime.equals(previously);
+                        if (!unchanged) {
+                            hash = ContentHash.of(xlsPath);
+                            unchanged = hash.equals(parseHash(previousState));
+                        }
+                        currentResourcesTimestamps.put(lodName + "^" + resourceName, hash == null ? previousState : state(lastModifiedTime, hash));
+                        if (unchanged) {
+                            String childrenKey = lodName + "^" + resourceName + ":children";
+                            String children = previouslyModifiedAt.get(childrenKey);
+                            if (children != null) {
+                                for (String child : children.split(",")) {
+                                    String name = lodName + "^" + child;
+                                    currentResourcesTimestamps.put(name, "!");
+                                }
+                                currentResourcesTimestamps.put(childrenKey, children);
+                                System.out.println("Xls " + xlsPath + " is modified at " + lastModifiedTime + ", ignoring (last timestamp is " + previously + ")");
+                                continue;
                             }
-                            currentResourcesTimestamps.put(childrenKey, children);
-                            System.out.println("Xls " + xlsPath + " is modified at " + lastModifiedTime + ", ignoring (last timestamp is " + previously + ")");
-                            continue;
                         }
                     }
-                }
 
-                System.out.println("Collecting texts from " + xlsPath.getFileName());
+                    System.out.println("Collecting texts from " + xlsPath.getFileName());
 
-                try (
-                        InputStream stream = Files.newInputStream(xlsPath);
-                        XSSFWorkbook sheets = new XSSFWorkbook(stream)
-                ) {
-                    List<Resource> resources = XlsTextExtractor.extractResources(xlsPath, sheets);
-                    for (Resource resource : resources) {
-                        if (!allowedLangs.isEmpty() && !allowedLangs.contains(resource.lang)) {
-                            continue;
-                        }
-                        Path lodPath = Utils.resolveTemplate(dir, pathPattern, resource.lang, lodName);
-                        lodToResource.computeIfAbsent(lodPath, k -> new LodResources(lodName)).addResource(resource);
-                        changed++;
+                    ContentHash xlsHash = hash;
+                    xlsJobs.add(new XlsJob(lodName, resourceName, xlsPool.submit(() -> extractTexts(xlsPath, xlsHash))));
+                }
+            }
+
+            for (XlsJob job : xlsJobs) {
+                String lodName = job.lodName;
+                List<Resource> resources = job.result();
+                for (Resource resource : resources) {
+                    if (!allowedLangs.isEmpty() && !allowedLangs.contains(resource.lang)) {
+                        continue;
                     }
-                    if (previouslyModifiedAt != null) {
-                        List<String> names = new ArrayList<>(resources.size());
-                        for (Resource resource : resources) {
-                            names.add(resource.name);
-                            String name = lodName + "^" + resource.name;
-                            currentResourcesTimestamps.put(name, "!");
-                        }
-                        currentResourcesTimestamps.put(lodName + "^" + resourceName + ":children", String.join(",", names));
+                    Path lodPath = Utils.resolveTemplate(dir, pathPattern, resource.lang, lodName);
+                    lodToResource.computeIfAbsent(lodPath, k -> new LodResources(lodName)).addResource(resource);
+                    changed++;
+                }
+                if (previouslyModifiedAt != null) {
+                    List<String> names = new ArrayList<>(resources.size());
+                    for (Resource resource : resources) {
+                        names.add(resource.name);
+                        String name = lodName + "^" + resource.name;
+                        currentResourcesTimestamps.put(name, "!");
                     }
+                    currentResourcesTimestamps.put(lodName + "^" + job.resourceName + ":children", String.join(",", names));
                 }
             }
+        } finally {
+            xlsPool.shutdownNow();
         }
 
         for (Map.Entry<String, List<Path>> entry : resourcesByLangLodName.entrySet()) {
@@ -160,21 +188,29 @@ public class DirectoryResourceCollector {
                     if (fileName.equals("thumbs.db")) {
                         continue;
                     }
+                    ByteBuffer content = null;
+                    ContentHash hash = null;
                     if (previouslyModifiedAt != null) {
                         Instant lastModifiedTime = Files.getLastModifiedTime(path).toInstant();
                         String resourceName = Resource.resourceName(path);
                         if (resourceName.toLowerCase().endsWith(".wav")) {
                             resourceName = resourceName.substring(0, resourceName.indexOf('.'));
                         }
-                        Instant previously = parseInstant(previouslyModifiedAt.get(lodName + "^" + resourceName));
-                        currentResourcesTimestamps.put(lodName + "^" + resourceName, lastModifiedTime.toString());
-                        if (lastModifiedTime.equals(previously)) {
+                        String previousState = previouslyModifiedAt.get(lodName + "^" + resourceName);
+                        boolean unchanged = lastModifiedTime.equals(parseInstant(previousState));
+                        if (!unchanged) {
+                            content = ByteBuffer.wrap(Files.readAllBytes(path));
+                            hash = ContentHash.of(content);
+                            unchanged = hash.equals(parseHash(previousState));
+                        }
+                        currentResourcesTimestamps.put(lodName + "^" + resourceName, hash == null ? previousState : state(lastModifiedTime, hash));
+                        if (unchanged) {
                             ignored++;
                             continue;
                         }
                     }
 
-                    Resource resource = Resource.fromPath(lang, path);
+                    Resource resource = resourceFromPath(lang, path, content, hash);
                     resources.addResource(resource);
                     changed++;
                 } catch (Exception e) {
@@ -197,8 +233,62 @@ public class DirectoryResourceCollector {
         }
     }
 
-    private static Instant parseInstant(String text) {
-        return text == null ? null : Instant.parse(text);
+    /**
+     * The workbook is hashed and parsed from the file, so it is never kept in heap as a whole.
+     */
+    private List<Resource> extractTexts(Path xlsPath, ContentHash hash) throws IOException {
+        ContentHash key = null;
+        if (buildCache != null) {
+            key = (hash == null ? ContentHash.of(xlsPath) : hash).derive(XLS_CACHE_KIND);
+            List<Resource> cached = buildCache.getResources(key, xlsPath);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        List<Resource> resources = XlsTextExtractor.extractResources(xlsPath);
+        if (key != null) {
+            buildCache.putResources(key, resources);
+        }
+        return resources;
+    }
+
+    private Resource resourceFromPath(String lang, Path path, ByteBuffer content, ContentHash hash) throws IOException {
+        if (content == null) {
+            if (buildCache == null) {
+                return Resource.fromPath(lang, path);
+            }
+            content = ByteBuffer.wrap(Files.readAllBytes(path));
+        }
+        if (buildCache == null || !Resource.needsConversion(path)) {
+            return Resource.fromBytes(lang, path, content);
+        }
+
+        ContentHash key = (hash == null ? ContentHash.of(content) : hash).derive(CONVERSION_CACHE_KIND + path.getFileName());
+        ByteBuffer converted = buildCache.get(key);
+        if (converted == null) {
+            converted = Resource.convert(path, content);
+            buildCache.put(key, converted);
+        }
+        return Resource.fromConverted(lang, path, converted);
+    }
+
+    // state is stored as "<modification time>#<content hash>", states of old versions have no hash
+    private static String state(Instant modifiedAt, ContentHash hash) {
+        return modifiedAt + "#" + hash;
+    }
+
+    private static Instant parseInstant(String state) {
+        if (state == null) {
+            return null;
+        }
+        int hashIndex = state.indexOf('#');
+        return Instant.parse(hashIndex == -1 ? state : state.substring(0, hashIndex));
+    }
+
+    private static ContentHash parseHash(String state) {
+        int hashIndex = state == null ? -1 : state.indexOf('#');
+        return hashIndex == -1 ? null : ContentHash.parse(state.substring(hashIndex + 1));
     }
 
     private Map<Path, String> writeLods(Map<Path, LodResources> lodToResource) throws IOException, DataFormatException {
@@ -215,80 +305,153 @@ public class DirectoryResourceCollector {
             retained = new TreeSet<>();
         }
 
-        try (ResourcePreprocessor resourcePreprocessor = new ResourcePreprocessor(compressionLevel)) {
+        // archives are written concurrently, output of every archive is printed as a whole in the original order
+        List<LodJob> lodJobs = new ArrayList<>();
+        ExecutorService packPool = Executors.newFixedThreadPool(Math.max(packThreads, 1), runnable -> {
+            Thread thread = new Thread(runnable, "Pack thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (ResourcePreprocessor resourcePreprocessor = new ResourcePreprocessor(compressionLevel, Runtime.getRuntime().availableProcessors(), buildCache)) {
 
             for (Map.Entry<Path, LodResources> entry : lodToResource.entrySet()) {
                 Path lodPath = entry.getKey();
+                LodResources resources = entry.getValue();
 
-                String suffix = entry.getValue().lodName + "^";
+                String suffix = resources.lodName + "^";
                 if (previouslyModifiedAt != null) {
                     String ceilingRemovedResource = removed.ceiling(suffix);
                     if (ceilingRemovedResource == null || !ceilingRemovedResource.startsWith(suffix)) {
-                        if (entry.getValue().resourcesByName.isEmpty()) {
+                        if (resources.resourcesByName.isEmpty()) {
                             continue;
                         }
                     }
                 }
 
-                System.out.println("Packing " + lodPath);
-                System.out.println("Preprocess resources");
-
-                for (Map.Entry<String, Resource> resource : entry.getValue().resourcesByName.entrySet()) {
-                    LodType lodType = LodType.forPath(lodPath);
-                    if (lodType == LodType.LOD || lodType == null) {
-                        String lowName = resource.getValue().name.toLowerCase();
-                        if (lowName.length() > 12) {
-                            if (lowName.length() > 15) {
-                                throw new RuntimeException("Resource lowName '" + lowName + "' is too long");
-                            } else {
-                                if (!dontWarnAboutNames.contains(lowName)) {
-                                    System.out.println("NOTE: Resource lowName '" + lowName + "' is longer then 12 chars, game treats it as '" + lowName.substring(0, 12) + "'");
-                                }
-                            }
-                        }
-                        resource.setValue(resourcePreprocessor.compressed(resource.getValue()));
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                PrintStream out = new PrintStream(output, true);
+                lodJobs.add(new LodJob(lodPath, output, packPool.submit(
+                        () -> writeLod(out, lodPath, resources, retained, resourcePreprocessor)
+                )));
+            }
+
+            // every job is awaited even after a failure: an interrupted write can leave a broken archive behind
+            Exception failure = null;
+            for (LodJob job : lodJobs) {
+                try {
+                    String logs = job.result();
+                    if (logs != null) {
+                        logsByLod.put(job.lodPath, logs);
+                    }
+                } catch (IOException | DataFormatException | RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
                     }
                 }
+            }
+            if (failure instanceof IOException io) {
+                throw io;
+            }
+            if (failure instanceof DataFormatException dfe) {
+                throw dfe;
+            }
+            if (failure != null) {
+                throw (RuntimeException) failure;
+            }
+        } finally {
+            packPool.shutdown();
+        }
+        return logsByLod;
+    }
 
-                System.out.println("Write " + lodPath);
-                LodFilePatch lodFilePatch = LodFilePatch.fromPath(lodPath, resourcePreprocessor);
-                if (previouslyModifiedAt == null) {
-                    lodFilePatch.removeAllFromOriginal();
-                } else {
-                    List<String> currentLodRetain = retained
-                            .tailSet(suffix, false)
-                            .headSet(entry.getValue().lodName + (char) ('^' + 1), false)
-                            .stream()
-                            .map(k -> k.substring(suffix.length()))
-                            .toList();
-                    lodFilePatch.retainOriginal(currentLodRetain);
+    /**
+     * @return detailed diff of the archive if it is requested, null otherwise
+     */
+    private String writeLod(
+            PrintStream out,
+            Path lodPath,
+            LodResources resources,
+            TreeSet<String> retained,
+            ResourcePreprocessor resourcePreprocessor
+    ) throws IOException, DataFormatException {
+        String suffix = resources.lodName + "^";
+        String logs = null;
+
+        out.println("Packing " + lodPath);
+        out.println("Preprocess resources");
+
+        LodType lodType = LodType.forPath(lodPath);
+        if (lodType == LodType.LOD || lodType == null) {
+            Map<String, Resource> resourcesByName = resources.resourcesByName;
+            for (Resource resource : resourcesByName.values()) {
+                String lowName = resource.name.toLowerCase();
+                if (lowName.length() > 12) {
+                    if (lowName.length() > 15) {
+                        throw new RuntimeException("Resource lowName '" + lowName + "' is too long");
+                    } else {
+                        if (!dontWarnAboutNames.contains(lowName)) {
+                            out.println("NOTE: Resource lowName '" + lowName + "' is longer then 12 chars, game treats it as '" + lowName.substring(0, 12) + "'");
+                        }
+                    }
                 }
+            }
 
-                for (Resource resource : entry.getValue().resourcesByName.values()) {
-                    lodFilePatch.addPatch(resource);
-                }
+            List<Resource> compressed = resourcePreprocessor.compressed(new ArrayList<>(resourcesByName.values()));
+            Iterator<Resource> compressedIterator = compressed.iterator();
+            for (Map.Entry<String, Resource> resource : resourcesByName.entrySet()) {
+                resource.setValue(compressedIterator.next());
+            }
+        }
 
-                if (logDetailedDiff) {
-                    String logs = lodFilePatch.calculateDiff();
-                    logsByLod.put(lodPath, logs);
-                }
+        out.println("Write " + lodPath);
+        Path tempPath = lodPath.resolveSibling(lodPath.getFileName() + ".tmp");
+        try (LodFilePatch lodFilePatch = LodFilePatch.fromPath(lodPath, resourcePreprocessor)) {
+            if (previouslyModifiedAt == null) {
+                lodFilePatch.removeAllFromOriginal();
+            } else {
+                List<String> currentLodRetain = retained
+                        .tailSet(suffix, false)
+                        .headSet(resources.lodName + (char) ('^' + 1), false)
+                        .stream()
+                        .map(k -> k.substring(suffix.length()))
+                        .toList();
+                lodFilePatch.retainOriginal(currentLodRetain);
+            }
 
-                if (!dry) {
-                    Files.createDirectories(lodPath.getParent());
-                    ByteBuffer newLod = lodFilePatch.serialize();
-                    try (FileChannel channel = FileChannel.open(
-                            lodPath,
-                            StandardOpenOption.CREATE,
-                            StandardOpenOption.WRITE,
-                            StandardOpenOption.TRUNCATE_EXISTING
-                    )) {
-                        channel.write(newLod);
-                        channel.force(true);
-                    }
+            for (Resource resource : resources.resourcesByName.values()) {
+                lodFilePatch.addPatch(resource);
+            }
+
+            if (logDetailedDiff) {
+                logs = lodFilePatch.calculateDiff();
+            }
+
+            if (!dry && updateLodsInPlace && lodFilePatch.updateInPlace(maxLodDeadSpace)) {
+                out.println("Updated in place " + lodPath);
+                return logs;
+            }
+
+            if (!dry) {
+                Files.createDirectories(lodPath.getParent());
+                try (FileChannel channel = FileChannel.open(
+                        tempPath,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING
+                )) {
+                    lodFilePatch.serialize(channel);
+                    channel.force(true);
                 }
             }
         }
-        return logsByLod;
+
+        // original lod is unmapped on close, windows doesn't allow to replace it before that
+        if (!dry) {
+            Files.move(tempPath, lodPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return logs;
     }
 
     private void writeLog(Map<Path, String> logsByLod) throws IOException {
@@ -332,6 +495,43 @@ public class DirectoryResourceCollector {
     }
 
 
+    private record XlsJob(String lodName, String resourceName, Future<List<Resource>> resources) {
+        List<Resource> result() throws IOException {
+            try {
+                return resources.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException io) {
+                    throw io;
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    private record LodJob(Path lodPath, ByteArrayOutputStream output, Future<String> logs) {
+        String result() throws IOException, DataFormatException {
+            try {
+                return logs.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException io) {
+                    throw io;
+                }
+                if (e.getCause() instanceof DataFormatException dfe) {
+                    throw dfe;
+                }
+                throw new RuntimeException(e.getCause());
+            } finally {
+                System.out.print(output);
+            }
+        }
+    }
+
     private static class LodResources {
         final String lodName;
         final Map<String, Resource> resourcesByName = new LinkedHashMap<>();
@@ -3,31 +3,95 @@ package com.github.artyomcool.lodinfra;
 import com.github.artyomcool.lodinfra.h3common.Archive;
 import com.github.artyomcool.lodinfra.h3common.LodFile;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.zip.DataFormatException;
 
-public class LodFilePatch {
+public class LodFilePatch implements Closeable {
 
     private static final int HEADER_SIZE = getLodHeaderSize();
     private static final int SUB_FILE_HEADER_SIZE = getLodMetaHeaderSize();
+    private static final int WRITE_BATCH_SIZE = 64;
 
     private final Archive file;
     private final Map<String, Resource> originalResourcesByName = new TreeMap<>();
     private final Set<String> removedByName = new TreeSet<>();
     private final Map<String, Resource> patchesByName = new TreeMap<>();
+    private final Map<Resource, Integer> originalOffsets = new IdentityHashMap<>();
 
     private final ResourcePreprocessor preprocessor;
 
     private final LodType type;
 
     public static LodFilePatch fromPath(Path path, ResourcePreprocessor preprocessor) throws IOException {
-        return new LodFilePatch(path, LodFile.loadOrCreate(path), preprocessor);
+        restoreInterruptedUpdate(path);
+        return new LodFilePatch(path, LodFile.mapOrCreate(path), preprocessor);
+    }
+
+    static Path headerBackupPath(Path lodPath) {
+        return lodPath.resolveSibling(lodPath.getFileName() + ".header");
+    }
+
+    /**
+     * Puts back the header saved by {@link #updateInPlace}, if it was interrupted while the header was rewritten.
+     * Appended data is cut off as well, so the archive is the same as before the update.
+     */
+    static void restoreInterruptedUpdate(Path lodPath) throws IOException {
+        Path backupPath = headerBackupPath(lodPath);
+        if (!Files.exists(backupPath)) {
+            return;
+        }
+
+        ByteBuffer backup = ByteBuffer.wrap(Files.readAllBytes(backupPath)).order(ByteOrder.LITTLE_ENDIAN);
+        long originalSize = backup.getLong();
+        try (FileChannel channel = FileChannel.open(lodPath, StandardOpenOption.WRITE)) {
+            channel.position(0);
+            writeFully(channel, new ByteBuffer[]{backup});
+            channel.truncate(originalSize);
+            channel.force(true);
+        }
+        Files.delete(backupPath);
+    }
+
+    /**
+     * Saves the size of the archive and its first bytes, that are about to be overwritten by a new header.
+     * The backup is moved in place atomically, so it either exists complete or doesn't exist at all.
+     */
+    static void backupHeader(FileChannel channel, Path lodPath, int headersSize) throws IOException {
+        long size = channel.size();
+        ByteBuffer backup = ByteBuffer.allocate(Long.BYTES + (int) Math.min(headersSize, size)).order(ByteOrder.LITTLE_ENDIAN);
+        backup.putLong(size);
+        while (backup.hasRemaining()) {
+            if (channel.read(backup, backup.position() - Long.BYTES) < 0) {
+                throw new IOException("Original file is truncated");
+            }
+        }
+        backup.flip();
+
+        Path backupPath = headerBackupPath(lodPath);
+        Path tempPath = backupPath.resolveSibling(backupPath.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(
+                tempPath,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING
+        )) {
+            writeFully(out, new ByteBuffer[]{backup});
+            out.force(true);
+        }
+        Files.move(tempPath, backupPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
     private LodFilePatch(Path lodPath, Archive file, ResourcePreprocessor preprocessor) {
@@ -37,6 +101,7 @@ public class LodFilePatch {
         for (Archive.Element subFile : file.files()) {
             Resource resource = Resource.fromLod(lodPath, subFile);
             originalResourcesByName.put(resource.sanitizedName, resource);
+            originalOffsets.put(resource, subFile.offset());
         }
     }
 
@@ -182,7 +247,147 @@ public class LodFilePatch {
         return new String(arr, Utils.cp1251);
     }
 
-    public ByteBuffer serialize() {
+    /**
+     * Writes the header table first and then streams resources as is, so only headers are kept in heap.
+     */
+    public void serialize(GatheringByteChannel channel) throws IOException {
+        List<Resource> resources = resultingResources();
+
+        int[] offsets = new int[resources.size()];
+        int offset = headersSize(resources.size());
+        for (int i = 0; i < resources.size(); i++) {
+            offsets[i] = offset;
+            offset += resources.get(i).data.remaining();
+        }
+
+        writeFully(channel, new ByteBuffer[]{headers(resources, offsets)});
+
+        // unchanged resources are copied by kernel from the original file, sequential ones in a single call
+        FileChannel source = null;
+        long sourceRunStart = 0;
+        long sourceRunLength = 0;
+
+        ByteBuffer[] batch = new ByteBuffer[Math.min(resources.size(), WRITE_BATCH_SIZE)];
+        int batchSize = 0;
+        try {
+            for (Resource resource : resources) {
+                Integer originalOffset = originalOffsets.get(resource);
+                if (originalOffset != null) {
+                    if (batchSize > 0) {
+                        writeFully(channel, Arrays.copyOf(batch, batchSize));
+                        batchSize = 0;
+                    }
+                    if (source == null) {
+                        source = FileChannel.open(file.originalPath(), StandardOpenOption.READ);
+                    }
+                    if (sourceRunStart + sourceRunLength != originalOffset) {
+                        transferFully(source, sourceRunStart, sourceRunLength, channel);
+                        sourceRunStart = originalOffset;
+                        sourceRunLength = 0;
+                    }
+                    sourceRunLength += resource.data.remaining();
+                    continue;
+                }
+
+                if (sourceRunLength > 0) {
+                    transferFully(source, sourceRunStart, sourceRunLength, channel);
+                    sourceRunLength = 0;
+                }
+                batch[batchSize++] = resource.data.asReadOnlyBuffer();
+                if (batchSize == batch.length) {
+                    writeFully(channel, batch);
+                    batchSize = 0;
+                }
+            }
+            if (batchSize > 0) {
+                writeFully(channel, Arrays.copyOf(batch, batchSize));
+            }
+            if (sourceRunLength > 0) {
+                transferFully(source, sourceRunStart, sourceRunLength, channel);
+            }
+        } finally {
+            if (source != null) {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * Appends new and changed resources to the end of the original file and rewrites the header table in place.
+     * Original resources that overlap the grown header table are moved to the end as well.
+     * The overwritten part of the file is backed up first, so an interrupted update is rolled back by the next
+     * {@link #fromPath}.
+     *
+     * @return false if the archive can't be updated in place or dead space would exceed the ratio,
+     * so it has to be serialized from scratch
+     */
+    public boolean updateInPlace(double maxDeadSpaceRatio) throws IOException {
+        if (type != LodType.LOD || file.originalPath() == null || file.files().isEmpty()) {
+            return false;
+        }
+
+        List<Resource> resources = resultingResources();
+        int headersSize = headersSize(resources.size());
+
+        try (FileChannel channel = FileChannel.open(file.originalPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // appended data must not overlap the grown header table either
+            long appendAt = Math.max(channel.size(), headersSize);
+            long end = appendAt;
+            long liveSize = headersSize;
+
+            int[] offsets = new int[resources.size()];
+            List<ByteBuffer> appended = new ArrayList<>();
+            for (int i = 0; i < resources.size(); i++) {
+                Resource resource = resources.get(i);
+                Integer originalOffset = originalOffset(resource);
+                if (originalOffset != null && originalOffset >= headersSize) {
+                    offsets[i] = originalOffset;
+                } else {
+                    offsets[i] = Math.toIntExact(end);
+                    end += resource.data.remaining();
+                    appended.add(resource.data.asReadOnlyBuffer());
+                }
+                liveSize += resource.data.remaining();
+            }
+
+            if (end - liveSize > end * maxDeadSpaceRatio) {
+                return false;
+            }
+
+            backupHeader(channel, file.originalPath(), headersSize);
+
+            channel.position(appendAt);
+            for (int i = 0; i < appended.size(); i += WRITE_BATCH_SIZE) {
+                writeFully(channel, appended.subList(i, Math.min(i + WRITE_BATCH_SIZE, appended.size())).toArray(ByteBuffer[]::new));
+            }
+            channel.force(false);
+
+            channel.position(0);
+            writeFully(channel, new ByteBuffer[]{headers(resources, offsets)});
+            channel.force(true);
+        }
+        Files.delete(headerBackupPath(file.originalPath()));
+        return true;
+    }
+
+    private Integer originalOffset(Resource resource) {
+        Integer offset = originalOffsets.get(resource);
+        if (offset != null) {
+            return offset;
+        }
+
+        // same bytes are re-added on the full rebuild, there is no sense to append them again
+        Resource original = originalResourcesByName.get(resource.sanitizedName);
+        if (original != null
+                && original.type == resource.type
+                && original.uncompressedSize == resource.uncompressedSize
+                && original.data.equals(resource.data)) {
+            return originalOffsets.get(original);
+        }
+        return null;
+    }
+
+    private List<Resource> resultingResources() {
         List<Resource> resources = new ArrayList<>(patchesByName.values());
         originalResourcesByName.forEach((sanitizedName, resource) -> {
             if (removedByName.contains(sanitizedName) || patchesByName.containsKey(sanitizedName)) {
@@ -191,22 +396,25 @@ public class LodFilePatch {
             resources.add(resource);
         });
         resources.sort(Comparator.comparing(r -> r.sanitizedName));
+        return resources;
+    }
 
-        int contentSize = resources.stream().mapToInt(r -> r.data.remaining()).sum();
-
+    private int headersSize(int count) {
         if (type == LodType.LOD) {
-            int headersSize = HEADER_SIZE + SUB_FILE_HEADER_SIZE * resources.size();
-
-            byte[] result = new byte[headersSize + contentSize];
-
-            int subFilesCount = resources.size();
-
-            ByteBuffer byteBuffer = ByteBuffer.wrap(result).order(ByteOrder.LITTLE_ENDIAN);
-            file.writeHeader(byteBuffer, subFilesCount);
+            return HEADER_SIZE + SUB_FILE_HEADER_SIZE * count;
+        }
+        int headerSize = 4;
+        int itemHeaderSize = type == LodType.SND ? 48 : 44;
+        return headerSize + itemHeaderSize * count;
+    }
 
-            int offset = headersSize;
+    private ByteBuffer headers(List<Resource> resources, int[] offsets) {
+        ByteBuffer headers = ByteBuffer.allocate(headersSize(resources.size())).order(ByteOrder.LITTLE_ENDIAN);
+        if (type == LodType.LOD) {
+            file.writeHeader(headers, resources.size());
 
-            for (Resource resource : resources) {
+            for (int i = 0; i < resources.size(); i++) {
+                Resource resource = resources.get(i);
                 int compressedSize = resource.uncompressedSize == 0
                         ? 0
                         : resource.data.remaining();
@@ -215,48 +423,53 @@ public class LodFilePatch {
                         ? resource.data.remaining()
                         : resource.uncompressedSize;
 
-                byteBuffer.put(nameBytes(resource.name, 16));
-                byteBuffer.putInt(offset);
-                byteBuffer.putInt(uncompressedSize);
-                byteBuffer.putInt(resource.type);
-                byteBuffer.putInt(compressedSize);
-
-                offset += resource.data.remaining();
+                headers.put(nameBytes(resource.name, 16));
+                headers.putInt(offsets[i]);
+                headers.putInt(uncompressedSize);
+                headers.putInt(resource.type);
+                headers.putInt(compressedSize);
             }
-
-            for (Resource resource : resources) {
-                byteBuffer.put(resource.data.asReadOnlyBuffer());
-            }
-
-            return byteBuffer.flip();
         } else {
-            int headerSize = 4;
-            int itemHeaderSize = type == LodType.SND ? 48 : 44;
-            int headersSize = headerSize + itemHeaderSize * resources.size();
-
-            byte[] result = new byte[headersSize + contentSize];
-            ByteBuffer byteBuffer = ByteBuffer.wrap(result).order(ByteOrder.LITTLE_ENDIAN);
-            byteBuffer.putInt(resources.size());
-
-            int offset = headersSize;
+            headers.putInt(resources.size());
 
-            for (Resource resource : resources) {
-                byteBuffer.put(nameBytes(resource.name, 40));
-                byteBuffer.putInt(offset);
+            for (int i = 0; i < resources.size(); i++) {
+                Resource resource = resources.get(i);
+                headers.put(nameBytes(resource.name, 40));
+                headers.putInt(offsets[i]);
                 if (type == LodType.SND) {
-                    byteBuffer.putInt(resource.data.remaining());
+                    headers.putInt(resource.data.remaining());
                 }
-                offset += resource.data.remaining();
             }
+        }
+        return headers.flip();
+    }
 
-            for (Resource resource : resources) {
-                byteBuffer.put(resource.data.asReadOnlyBuffer());
+    private static void transferFully(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+        while (count > 0) {
+            long transferred = source.transferTo(position, count, target);
+            if (transferred <= 0) {
+                throw new IOException("Original file is truncated");
             }
+            position += transferred;
+            count -= transferred;
+        }
+    }
 
-            return byteBuffer.flip();
+    private static void writeFully(GatheringByteChannel channel, ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
         }
     }
 
+    @Override
+    public void close() {
+        file.close();
+    }
+
     private static int getLodHeaderSize() {
         LodFile file = LodFile.createEmpty(null);
 
@@ -104,6 +104,11 @@ public class Pack {
         collector.logDetailedDiff = Boolean.parseBoolean(properties.getProperty("logDetailedDiff", "false"));
         boolean checkTimeStamps = Boolean.parseBoolean(properties.getProperty("checkTimestamps", "false"));
         collector.compressionLevel = Integer.parseInt(properties.getProperty("compressionLevel", "0"));
+        collector.xlsThreads = Integer.parseInt(properties.getProperty("xlsThreads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        collector.packThreads = Integer.parseInt(properties.getProperty("packThreads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        long buildCacheSize = Long.parseLong(properties.getProperty("buildCacheSizeMb", "1024")) * 1024 * 1024;
+        collector.updateLodsInPlace = Boolean.parseBoolean(properties.getProperty("updateLodsInPlace", "false"));
+        collector.maxLodDeadSpace = Double.parseDouble(properties.getProperty("maxLodDeadSpace", "0.25"));
         String allowedLangs = properties.getProperty("allowedLangs", "").toLowerCase();
         String dontWarnAboutNames = properties.getProperty("dontWarnAboutNames", "").toLowerCase();
 
@@ -114,7 +119,17 @@ public class Pack {
         collector.allowedLangs = new HashSet<>(Arrays.asList(allowedLangs.split(",")));
         collector.dontWarnAboutNames = new HashSet<>(Arrays.asList(dontWarnAboutNames.split(",")));
 
-        collector.collectResources();
+        if (buildCacheSize > 0) {
+            collector.buildCache = new BuildCache(self.resolve(collector.logPath).resolve("cache"), buildCacheSize);
+        }
+
+        try {
+            collector.collectResources();
+        } finally {
+            if (collector.buildCache != null) {
+                collector.buildCache.close();
+            }
+        }
 
         if (checkTimeStamps) {
             storeTimestamp(timestampFile, collector.nowModifiedAt, allowedLangs);
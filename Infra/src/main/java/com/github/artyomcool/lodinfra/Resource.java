@@ -39,7 +39,20 @@ public class Resource {
 
     // TODO move it out
     public static Resource fromPath(String lang, Path path) throws IOException {
-        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        return fromBytes(lang, path, ByteBuffer.wrap(Files.readAllBytes(path)));
+    }
+
+    public static Resource fromBytes(String lang, Path path, ByteBuffer buffer) {
+        return fromConverted(lang, path, needsConversion(path) ? convert(path, buffer) : buffer);
+    }
+
+    public static boolean needsConversion(Path path) {
+        String[] nameWithExt = path.getFileName().toString().split("\\.");
+        String ext = nameWithExt[nameWithExt.length - 1];
+        return ext.equalsIgnoreCase("png") || ext.equalsIgnoreCase("bmp");
+    }
+
+    public static ByteBuffer convert(Path path, ByteBuffer buffer) {
         String name = path.getFileName().toString();
         String[] nameWithExt = name.split("\\.");
         if (nameWithExt[nameWithExt.length - 1].equalsIgnoreCase("png")) {
@@ -47,6 +60,12 @@ public class Resource {
         } else if (nameWithExt[nameWithExt.length - 1].equalsIgnoreCase("bmp")) {
             buffer = ResourceConverter.fromBMP(name, buffer);
         }
+        return buffer;
+    }
+
+    public static Resource fromConverted(String lang, Path path, ByteBuffer buffer) {
+        String name = path.getFileName().toString();
+        String[] nameWithExt = name.split("\\.");
         String ext = nameWithExt[1];
         name = nameWithExt[0].split("#")[0] + "." + ext;
         return new Resource(
@@ -12,15 +12,11 @@ import java.nio.ByteOrder;
 public class ResourceConverter {
 
     public static ByteBuffer fromPng(String name, ByteBuffer buffer) {
-        buffer = buffer.asReadOnlyBuffer();
-
         if (name.toLowerCase().endsWith(".p32.png")) {
-            return P32.pack(Png.load(buffer).first());
+            return P32.pack(Png.load(buffer.asReadOnlyBuffer()).first());
         }
 
-        byte[] data = new byte[buffer.remaining()];
-        buffer.get(data);
-        PngReader pngReader = new PngReader(new ByteArrayInputStream(data));
+        PngReader pngReader = new PngReader(inputStream(buffer));
         PngChunkPLTE plte = pngReader.getMetadata().getPLTE();
         if (name.toLowerCase().endsWith(".idx.png")) {
             if (plte == null) {
@@ -32,50 +28,65 @@ public class ResourceConverter {
             }
         }
 
-        if (pngReader.imgInfo.alpha) {
+        ImageInfo info = pngReader.imgInfo;
+        if (info.alpha) {
             throw new IllegalStateException(name + " alpha channel is supported only for p32");
         }
 
-        try {
-            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-            DataOutputStream output = new DataOutputStream(bytes);
-
-            int size = pngReader.imgInfo.cols * pngReader.imgInfo.rows;
-
-            output.writeInt(Integer.reverseBytes(plte == null ? size * 3 : size));
-            output.writeInt(Integer.reverseBytes(pngReader.imgInfo.cols));
-            output.writeInt(Integer.reverseBytes(pngReader.imgInfo.rows));
-
-            IImageLineSet<? extends IImageLine> rows = pngReader.readRows();
-            for (int row = 0; row < rows.size(); row++) {
-                IImageLine line = rows.getImageLine(row);
-                ImageLineByte lineByte = line instanceof ImageLineByte ? (ImageLineByte) line : null;
-                ImageLineInt lineInt = line instanceof ImageLineInt ? (ImageLineInt) line : null;
-
-                for (int column = 0; column < pngReader.imgInfo.cols; column++) {
-                    if (plte == null) {
-                        int pixelRGB8 = ImageLineHelper.getPixelRGB8(line, column);
-                        output.writeByte((pixelRGB8 >> 0) & 0xff);
-                        output.writeByte((pixelRGB8 >> 8) & 0xff);
-                        output.writeByte((pixelRGB8 >> 16) & 0xff);
-                    } else {
-                        output.writeByte(lineByte != null ? lineByte.getElem(column) : lineInt.getElem(column) & 0xff);
-                    }
-                }
-            }
+        int width = info.cols;
+        int size = width * info.rows;
+        byte[] out = new byte[12 + (plte == null ? size * 3 : size + 256 * 3)];
+        ByteBuffer.wrap(out).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(plte == null ? size * 3 : size)
+                .putInt(width)
+                .putInt(info.rows);
+
+        // rows are read one by one into the same line
+        boolean rgb8 = !info.greyscale && info.bitDepth == 8;
+        int pos = 12;
+        while (pngReader.hasMoreRows()) {
+            IImageLine line = pngReader.readRow();
+            int[] samples = line instanceof ImageLineInt ? ((ImageLineInt) line).getScanline() : null;
             if (plte != null) {
-                for (int i = 0; i < 256; i++) {
-                    int entry = plte.getEntry(i);
-                    output.writeByte((entry >> 16) & 0xff);
-                    output.writeByte((entry >> 8) & 0xff);
-                    output.writeByte((entry >> 0) & 0xff);
+                for (int column = 0; column < width; column++) {
+                    out[pos++] = (byte) (samples != null ? samples[column] : ((ImageLineByte) line).getElem(column));
                 }
+            } else if (rgb8 && samples != null) {
+                for (int i = 0; i < width * 3; i += 3) {
+                    out[pos++] = (byte) samples[i + 2];
+                    out[pos++] = (byte) samples[i + 1];
+                    out[pos++] = (byte) samples[i];
+                }
+            } else {
+                for (int column = 0; column < width; column++) {
+                    int pixelRGB8 = ImageLineHelper.getPixelRGB8(line, column);
+                    out[pos++] = (byte) pixelRGB8;
+                    out[pos++] = (byte) (pixelRGB8 >> 8);
+                    out[pos++] = (byte) (pixelRGB8 >> 16);
+                }
+            }
+        }
+        pngReader.end();
+
+        if (plte != null) {
+            for (int i = 0; i < 256; i++) {
+                int entry = plte.getEntry(i);
+                out[pos++] = (byte) (entry >> 16);
+                out[pos++] = (byte) (entry >> 8);
+                out[pos++] = (byte) entry;
             }
+        }
 
-            return ByteBuffer.wrap(bytes.toByteArray());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        return ByteBuffer.wrap(out);
+    }
+
+    private static InputStream inputStream(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
         }
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+        return new ByteArrayInputStream(data);
     }
 
     public static ImageData toBmp(byte[] d) {
@@ -115,38 +126,20 @@ public class ResourceConverter {
 
                 out.put((byte) b).put((byte) g).put((byte) r).put((byte) 0xff);
             }
-            for (int y = 0; y < height; y++) {
-                int x;
-                for (x = 0; x < width; x++) {
-                    out.put(data.get());
-                }
-                for (; x < lineSize; x++) {
-                    out.put((byte) 0);
-                }
-            }
-        } else {
-            for (int y = 0; y < height; y++) {
-                int x;
-                for (x = 0; x < width; x++) {
-                    byte b = data.get();
-                    byte g = data.get();
-                    byte r = data.get();
-                    out.put(b);
-                    out.put(g);
-                    out.put(r);
-                }
-                x *= 3;
-                for (; x < lineSize; x++) {
-                    out.put((byte) 0);
-                }
-            }
+        }
+
+        // both formats keep pixels as BGR or palette indexes, rows only get padding, which is already zero
+        int rowSize = hasPalette ? width : width * 3;
+        for (int y = 0; y < height; y++) {
+            out.put(d, 12 + y * rowSize, rowSize);
+            out.position(out.position() + lineSize - rowSize);
         }
 
         return new ImageData(hasPalette, out.array());
     }
 
     public static ByteBuffer fromBMP(String name, ByteBuffer data) {
-        data = data.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        data = data.asReadOnlyBuffer().slice().order(ByteOrder.LITTLE_ENDIAN);
 
         int magic = data.getShort() & 0xffff;
         if (magic != 0x4D42) {  // BM
@@ -183,10 +176,6 @@ public class ResourceConverter {
         boolean topToBottom = height < 0;
         height = Math.abs(height);
 
-        byte[] imageData = new byte[dataOffset - (14 + headerSize + 4 * colorsUsed)];
-        data.get(imageData);
-
-
         ByteBuffer out;
         int size = width * height;
         if (bpp == 24) {
@@ -208,17 +197,8 @@ public class ResourceConverter {
                 inc = -1;
             }
 
-            int position = data.position();
             for (; y != end; y += inc) {
-                data.position(position + lineSize * y);
-                for (int x = 0; x < width; x++) {
-                    byte b = data.get();
-                    byte g = data.get();
-                    byte r = data.get();
-                    out.put(b);
-                    out.put(g);
-                    out.put(r);
-                }
+                out.put(data.slice(dataOffset + lineSize * y, width * 3));
             }
         } else {
             out = ByteBuffer.allocate(12 + 256 * 3 + size).order(ByteOrder.LITTLE_ENDIAN);
@@ -229,6 +209,7 @@ public class ResourceConverter {
             byte[] r = new byte[colorsUsed];
             byte[] g = new byte[colorsUsed];
             byte[] b = new byte[colorsUsed];
+            data.position(14 + headerSize);
             for (int i = 0; i < colorsUsed; i++) {
                 b[i] = data.get();
                 g[i] = data.get();
@@ -249,13 +230,8 @@ public class ResourceConverter {
                 inc = -1;
             }
 
-            int position = data.position();
-
             for (; y != end; y += inc) {
-                data.position(position + lineSize * y);
-                for (int x = 0; x < width; x++) {
-                    out.put(data.get());
-                }
+                out.put(data.slice(dataOffset + lineSize * y, width));
             }
 
             for (int i = 0; i < colorsUsed; i++) {
@@ -291,21 +267,21 @@ public class ResourceConverter {
                 plteChunk.setEntry(i / 3, r, g, b);
             }
 
+            // the writer doesn't keep the line, so it is reused for every row
+            ImageLineByte line = new ImageLineByte(header);
             for (int y = 0; y < height; y++) {
-                ImageLineByte line = new ImageLineByte(header);
-                for (int x = 0; x < width; x++) {
-                    line.getScanline()[x] = data[12 + y * width + x];
-                }
+                System.arraycopy(data, 12 + y * width, line.getScanline(), 0, width);
                 pngWriter.writeRow(line);
             }
         } else {
+            ImageLineByte line = new ImageLineByte(header);
+            byte[] scanline = line.getScanline();
             for (int y = 0; y < height; y++) {
-                ImageLineInt line = new ImageLineInt(header);
-                for (int x = 0; x < width; x++) {
-                    int r = data[12 + y * width * 3 + x * 3 + 2] & 0xff;
-                    int g = data[12 + y * width * 3 + x * 3 + 1] & 0xff;
-                    int b = data[12 + y * width * 3 + x * 3] & 0xff;
-                    ImageLineHelper.setPixelRGB8(line, x, r, g, b);
+                int pos = 12 + y * width * 3;
+                for (int i = 0; i < width * 3; i += 3) {
+                    scanline[i] = data[pos + i + 2];
+                    scanline[i + 1] = data[pos + i + 1];
+                    scanline[i + 2] = data[pos + i];
                 }
                 pngWriter.writeRow(line);
             }
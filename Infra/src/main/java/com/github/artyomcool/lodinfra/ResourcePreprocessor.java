@@ -2,24 +2,107 @@ package com.github.artyomcool.lodinfra;
 
 import java.io.Closeable;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 
+/**
+ * Safe to use from several threads, every thread gets its own deflater and inflater.
+ */
 public class ResourcePreprocessor implements Closeable {
 
-    private final Inflater inflater = new Inflater();
-    private final Deflater deflater;
+    private final int compressionLevel;
+    private final BuildCache buildCache;
+    private final ExecutorService executor;
+    private final List<Deflater> deflaters = Collections.synchronizedList(new ArrayList<>());
+    private final List<Inflater> inflaters = Collections.synchronizedList(new ArrayList<>());
+    private final ThreadLocal<Deflater> deflater = ThreadLocal.withInitial(this::newDeflater);
+    private final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(this::newInflater);
 
     public ResourcePreprocessor(int compressionLevel) {
-        deflater = new Deflater(compressionLevel);
+        this(compressionLevel, Runtime.getRuntime().availableProcessors(), null);
+    }
+
+    public ResourcePreprocessor(int compressionLevel, int threads, BuildCache buildCache) {
+        this.compressionLevel = compressionLevel;
+        this.buildCache = buildCache;
+        this.executor = Executors.newFixedThreadPool(Math.max(threads, 1), runnable -> {
+            Thread thread = new Thread(runnable, "Compression thread");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     public Resource compressed(Resource resource) {
+        return compressed(deflater.get(), resource);
+    }
+
+    /**
+     * Compresses resources on the worker threads, result has the same order as the input.
+     */
+    public List<Resource> compressed(List<Resource> resources) {
+        List<Future<Resource>> futures = new ArrayList<>(resources.size());
+        for (Resource resource : resources) {
+            if (resource.uncompressedSize != 0) {
+                futures.add(null);
+                continue;
+            }
+            futures.add(executor.submit(() -> compressed(deflater.get(), resource)));
+        }
+
+        List<Resource> result = new ArrayList<>(resources.size());
+        try {
+            for (int i = 0; i < resources.size(); i++) {
+                Future<Resource> future = futures.get(i);
+                result.add(future == null ? resources.get(i) : future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Can't compress resources", e.getCause());
+        } finally {
+            for (Future<Resource> future : futures) {
+                if (future != null) {
+                    future.cancel(false);
+                }
+            }
+        }
+        return result;
+    }
+
+    private Resource compressed(Deflater deflater, Resource resource) {
         if (resource.uncompressedSize != 0) {
             return resource;
         }
+        if (buildCache == null) {
+            return compress(deflater, resource);
+        }
 
+        ContentHash key = ContentHash.of(resource.data).derive("deflate:" + compressionLevel);
+        ByteBuffer cached = buildCache.get(key);
+        if (cached != null) {
+            return cached.hasRemaining() ? compressedResource(resource, cached) : resource;
+        }
+
+        Resource result = compress(deflater, resource);
+        if (result == resource) {
+            buildCache.putEmpty(key);
+        } else {
+            buildCache.put(key, result.data);
+        }
+        return result;
+    }
+
+    private static Resource compress(Deflater deflater, Resource resource) {
         deflater.reset();
         deflater.setInput(resource.data.asReadOnlyBuffer());
         deflater.finish();
@@ -35,19 +118,36 @@ public class ResourcePreprocessor implements Closeable {
             clone.put(temp);
             clone.flip();
 
-            return new Resource(
-                    resource.type,
-                    resource.lang,
-                    resource.name,
-                    resource.sanitizedName,
-                    resource.virtualPath + "#compressed",
-                    clone,
-                    resource.data.remaining()
-            );
+            return compressedResource(resource, clone);
         }
     }
 
+    private static Resource compressedResource(Resource resource, ByteBuffer compressed) {
+        return new Resource(
+                resource.type,
+                resource.lang,
+                resource.name,
+                resource.sanitizedName,
+                resource.virtualPath + "#compressed",
+                compressed,
+                resource.data.remaining()
+        );
+    }
+
+    private Deflater newDeflater() {
+        Deflater result = new Deflater(compressionLevel);
+        deflaters.add(result);
+        return result;
+    }
+
+    private Inflater newInflater() {
+        Inflater result = new Inflater();
+        inflaters.add(result);
+        return result;
+    }
+
     public ByteBuffer uncompressed(Resource resource, ByteBuffer out) throws DataFormatException {
+        Inflater inflater = this.inflater.get();
         out.clear();
         inflater.reset();
         inflater.setInput(resource.data.asReadOnlyBuffer());
@@ -59,7 +159,19 @@ public class ResourcePreprocessor implements Closeable {
 
     @Override
     public void close() {
-        inflater.end();
-        deflater.end();
+        executor.shutdownNow();
+        try {
+            // deflate is not interruptible, a running task has to finish before its deflater is ended
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;     // streams are released by their cleaners then
+        }
+        synchronized (deflaters) {
+            deflaters.forEach(Deflater::end);
+        }
+        synchronized (inflaters) {
+            inflaters.forEach(Inflater::end);
+        }
     }
 }
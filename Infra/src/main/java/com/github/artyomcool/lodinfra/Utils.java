@@ -1,6 +1,9 @@
 package com.github.artyomcool.lodinfra;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -34,4 +37,35 @@ public class Utils {
             }
         });
     }
+
+    // windows doesn't allow to replace or truncate a file while it is mapped, so we can't wait for GC
+    public static void unmap(MappedByteBuffer buffer) {
+        try {
+            Object unmapper = Unmapper.method.invoke(buffer);
+            if (unmapper == null) {
+                return;
+            }
+            Method unmap = unmapper.getClass().getDeclaredMethod("unmap");
+            unmap.setAccessible(true);
+            unmap.invoke(unmapper);
+        } catch (IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
+            e.printStackTrace();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class Unmapper {
+        static final Method method;
+
+        static {
+            try {
+                Class<?> cl = Class.forName("java.nio.MappedByteBuffer");
+                method = cl.getDeclaredMethod("unmapper");
+                method.setAccessible(true);
+            } catch (Throwable e) {
+                e.printStackTrace();
+                throw new RuntimeException(e);
+            }
+        }
+    }
 }
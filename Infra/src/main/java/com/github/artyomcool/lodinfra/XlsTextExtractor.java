@@ -1,148 +1,129 @@
 package com.github.artyomcool.lodinfra;
 
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.formula.FormulaParser;
+import org.apache.poi.ss.formula.FormulaRenderer;
+import org.apache.poi.ss.formula.FormulaType;
+import org.apache.poi.ss.formula.SharedFormula;
+import org.apache.poi.ss.formula.ptg.Ptg;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellType;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.SharedStrings;
 import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFEvaluationWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
-
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.stream.IntStream;
 
 public class XlsTextExtractor {
 
-    public static List<Resource> extractResources(Path path, XSSFWorkbook sheets) {
-        List<Resource> resources = new ArrayList<>();
-        sheets.sheetIterator().forEachRemaining(sheet -> parseSheet(path, resources, sheet));
-
-        return resources;
-    }
-
-    // TODO extract Path to constructor
-    private static void parseSheet(Path path, List<Resource> resources, Sheet sheet) {
-        Row firstRow = sheet.getRow(0);
-        if (rowIsEmpty(firstRow)) {
-            return;
-        }
-
-        Header header = parseHeader(firstRow);
-        int lastRowNum = getLastRowNum(sheet);
+    /**
+     * Sheets are read with SAX instead of the POI DOM, so only shared strings and the resulting texts are kept
+     * in memory. Sheets are parsed in parallel, in the pool of the calling task if any, result keeps order of sheets:
+     * every sheet has its own parser and handler, and the read-only shared strings table is not changed after loading.
+     */
+    public static List<Resource> extractResources(Path path) throws IOException {
+        // opened from the file, parts are inflated on demand instead of the whole package being read into heap
+        try (OPCPackage pkg = OPCPackage.open(path.toFile(), PackageAccess.READ)) {
+            SharedStrings strings = new ReadOnlySharedStringsTable(pkg, false);
+            XSSFReader.SheetIterator iterator = (XSSFReader.SheetIterator) new XSSFReader(pkg).getSheetsData();
+
+            Map<String, PackagePart> sheetParts = new LinkedHashMap<>();
+            while (iterator.hasNext()) {
+                iterator.next().close();
+                sheetParts.put(iterator.getSheetName(), iterator.getSheetPart());
+            }
 
-        for (int rowIndex = 1; rowIndex <= lastRowNum; rowIndex++) {
-            appendRow(sheet, header, rowIndex);
+            List<String> sheetNames = List.copyOf(sheetParts.keySet());
+            return IntStream.range(0, sheetNames.size()).parallel()
+                    .mapToObj(i -> parseSheet(path, sheetNames, i, sheetParts.get(sheetNames.get(i)), strings))
+                    .flatMap(List::stream)
+                    .toList();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (OpenXML4JException | SAXException e) {
+            throw new IOException("Can't read " + path, e);
         }
-
-        String name = sheet.getSheetName();
-        header.langToText.forEach((k, v) -> resources.add(
-                Resource.fromString(
-                        path,
-                        k,
-                        name,
-                        v.toString()
-                )
-        ));
     }
 
-    private static void appendRow(Sheet sheet, Header header, int rowIndex) {
-        Row row = sheet.getRow(rowIndex);
-        Set<String> firstCellOfLangVisited = new HashSet<>();
-
-        for (int cellIndex = 0; cellIndex < header.columnsInfo.size(); cellIndex++) {
-            ColumnInfo columnInfo = header.columnsInfo.get(cellIndex);
-            Cell cell = row == null ? null : row.getCell(cellIndex);
-
-            appendCell(header, columnInfo, cell, firstCellOfLangVisited);
+    private static List<Resource> parseSheet(Path path, List<String> sheetNames, int sheetIndex, PackagePart part, SharedStrings strings) {
+        String name = sheetNames.get(sheetIndex);
+        SheetTexts texts = new SheetTexts();
+        try (InputStream stream = part.getInputStream()) {
+            XMLReader reader = XMLHelper.newXMLReader();
+            reader.setContentHandler(new SheetHandler(strings, sheetNames, sheetIndex, texts));
+            reader.parse(new InputSource(stream));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (SAXException | ParserConfigurationException e) {
+            throw new UncheckedIOException(new IOException("Can't read sheet " + name + " of " + path, e));
         }
+        return texts.resources(path, name);
+    }
 
-        for (StringBuilder text : header.allTexts()) {
-            text.append("\r\n");
-        }
+    public static String getCellText(Cell cell) {
+        return getCellText(CellValue.of(cell));
     }
 
-    private static void appendCell(Header header, ColumnInfo columnInfo, Cell cell, Set<String> firstCellOfLangVisited) {
-        if (skipCell(columnInfo, cell)) {
-            return;
+    private static String getCellText(CellValue cell) {
+        if (cell.type == CellType.NUMERIC) {
+            return cell.text;
         }
+        String text = cell.text
+                .replaceAll("\"", "\"\"")
+                .replaceAll("\r\n", "\n");
 
-        Collection<String> langsToVisit = columnInfo.isCommon()
-                ? header.allLanguages()
-                : Collections.singletonList(columnInfo.lang);
-
-        for (String lang : langsToVisit) {
-            StringBuilder text = header.langToText.get(lang);
-
-            if (!firstCellOfLangVisited.add(lang)) {
-                text.append('\t');
-            }
+        return text.contains("\n")
+                ? "\"" + text + "\""
+                : text;
+    }
 
-            if (cell == null) {
-                continue;
-            }
+    private static CellValue cellAt(List<CellValue> cells, int index) {
+        return index < cells.size() ? cells.get(index) : null;
+    }
 
-            text.append(getCellText(cell));
-        }
+    private static boolean isBlank(CellValue cell) {
+        return cell == null || cell.text.isBlank();
     }
 
-    private static boolean skipCell(ColumnInfo columnInfo, Cell cell) {
+    private static boolean skipCell(ColumnInfo columnInfo, CellValue cell) {
         switch (columnInfo.action) {
             case SKIP_ALWAYS:
                 return true;
             case SKIP_EMPTY:
-                return cell == null || cell.toString().isBlank();
+                return isBlank(cell);
             case APPEND_ALWAYS:
                 return false;
         }
         throw new IllegalArgumentException("Wrong enum: " + columnInfo.action);
     }
 
-    private static boolean rowIsEmpty(Row firstRow) {
-        return firstRow == null
-                || firstRow.getCell(0) == null
-                || firstRow.getCell(0).toString().isBlank();
-    }
-
-    public static String getCellText(Cell cell) {
-        if (cell.getCellType() == CellType.NUMERIC) {
-            return ((XSSFCell) cell).getRawValue();
-        }
-        String text = cell.toString()
-                .replaceAll("\"", "\"\"")
-                .replaceAll("\r\n", "\n");
-
-        return text.contains("\n")
-                ? "\"" + text + "\""
-                : text;
-    }
-
-    private static int getLastRowNum(Sheet sheet) {
-        for (int lastRowNum = sheet.getLastRowNum(); lastRowNum > 0; lastRowNum--) {
-            Row row = sheet.getRow(lastRowNum);
-            if (row == null) {
-                continue;
-            }
-            Cell cell = row.getCell(0);
-            if (cell != null && cell.getCellType() == CellType.STRING && cell.getStringCellValue().startsWith("###")) {
-                return lastRowNum - 1;
-            }
-            Iterator<Cell> cellIterator = row.cellIterator();
-            while (cellIterator.hasNext()) {
-                Cell next = cellIterator.next();
-                if (next != null) {
-                    if (!next.toString().isBlank()) {
-                        return lastRowNum;
-                    }
-                }
-            }
-        }
-        return 0;
-    }
-
-    private static Header parseHeader(Row firstRow) {
+    private static Header parseHeader(List<CellValue> firstRow) {
         Header header = new Header();
 
-        for (int cellIndex = 0; cellIndex < firstRow.getLastCellNum(); cellIndex++) {
-            ColumnInfo columnInfo = parseColumnInfo(firstRow.getCell(cellIndex));
+        for (int cellIndex = 0; cellIndex < firstRow.size(); cellIndex++) {
+            ColumnInfo columnInfo = parseColumnInfo(firstRow.get(cellIndex));
             if (columnInfo == null) {
                 break;
             }
@@ -157,12 +138,12 @@ public class XlsTextExtractor {
         return header;
     }
 
-    private static ColumnInfo parseColumnInfo(Cell cell) {
-        if (cell == null || cell.getCellType() != CellType.STRING || cell.getStringCellValue().isBlank()) {
+    private static ColumnInfo parseColumnInfo(CellValue cell) {
+        if (cell == null || cell.type != CellType.STRING || cell.text.isBlank()) {
             return null;
         }
 
-        String lang = cell.toString();
+        String lang = cell.text;
         if (lang.equals("ignore")) {
             return new ColumnInfo(Action.SKIP_ALWAYS, null);
         }
@@ -176,6 +157,299 @@ public class XlsTextExtractor {
         return new ColumnInfo(action, langParts[0]);
     }
 
+    /**
+     * Cell type and its text as POI shows it in {@link Cell#toString()}, numbers are kept raw.
+     */
+    private record CellValue(CellType type, String text) {
+
+        static CellValue of(Cell cell) {
+            if (cell == null) {
+                return null;
+            }
+            CellType type = cell.getCellType();
+            return new CellValue(type, type == CellType.NUMERIC ? ((XSSFCell) cell).getRawValue() : cell.toString());
+        }
+
+    }
+
+    /**
+     * Texts of a single sheet built row by row. The first row is a header; trailing blank rows and
+     * a trailing row starting with ### are dropped, so texts are cut back to the last row worth keeping.
+     */
+    private static class SheetTexts {
+        private Header header;
+        private boolean empty;
+        private int nextRow;
+        private int[] keptLengths;
+
+        void appendRow(int rowIndex, List<CellValue> cells) {
+            if (empty) {
+                return;
+            }
+            if (header == null) {
+                if (rowIndex != 0 || isBlank(cellAt(cells, 0))) {
+                    empty = true;
+                    return;
+                }
+                header = parseHeader(cells);
+                keptLengths = new int[header.langToText.size()];
+                nextRow = 1;
+                return;
+            }
+
+            for (; nextRow < rowIndex; nextRow++) {
+                appendCells(Collections.emptyList());
+            }
+            int[] lengthsBefore = lengths();
+            appendCells(cells);
+            nextRow++;
+
+            CellValue first = cellAt(cells, 0);
+            if (first != null && first.type == CellType.STRING && first.text.startsWith("###")) {
+                keptLengths = lengthsBefore;
+            } else if (cells.stream().anyMatch(c -> !isBlank(c))) {
+                keptLengths = lengths();
+            }
+        }
+
+        List<Resource> resources(Path path, String name) {
+            List<Resource> resources = new ArrayList<>();
+            if (header == null) {
+                return resources;
+            }
+
+            int i = 0;
+            for (Map.Entry<String, StringBuilder> entry : header.langToText.entrySet()) {
+                StringBuilder text = entry.getValue();
+                text.setLength(keptLengths[i++]);
+                resources.add(Resource.fromString(path, entry.getKey(), name, text.toString()));
+            }
+            return resources;
+        }
+
+        private void appendCells(List<CellValue> cells) {
+            Set<String> firstCellOfLangVisited = new HashSet<>();
+
+            for (int cellIndex = 0; cellIndex < header.columnsInfo.size(); cellIndex++) {
+                appendCell(header.columnsInfo.get(cellIndex), cellAt(cells, cellIndex), firstCellOfLangVisited);
+            }
+
+            for (StringBuilder text : header.allTexts()) {
+                text.append("\r\n");
+            }
+        }
+
+        private void appendCell(ColumnInfo columnInfo, CellValue cell, Set<String> firstCellOfLangVisited) {
+            if (skipCell(columnInfo, cell)) {
+                return;
+            }
+
+            Collection<String> langsToVisit = columnInfo.isCommon()
+                    ? header.allLanguages()
+                    : Collections.singletonList(columnInfo.lang);
+
+            for (String lang : langsToVisit) {
+                StringBuilder text = header.langToText.get(lang);
+
+                if (!firstCellOfLangVisited.add(lang)) {
+                    text.append('\t');
+                }
+
+                if (cell == null) {
+                    continue;
+                }
+
+                text.append(getCellText(cell));
+            }
+        }
+
+        private int[] lengths() {
+            int[] result = new int[keptLengths.length];
+            int i = 0;
+            for (StringBuilder text : header.allTexts()) {
+                result[i++] = text.length();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Reads rows of a sheet part and passes them to {@link SheetTexts}, cell values are resolved
+     * the same way as {@link XSSFCell} does for the types we can meet in localisation sheets.
+     * As in {@link XSSFCell#getCellFormula()}, every cell of a shared formula gets the formula shifted
+     * to the cell, and every cell of an array formula gets the formula of the array.
+     */
+    private static class SheetHandler extends DefaultHandler {
+        private final SharedStrings strings;
+        private final List<String> sheetNames;
+        private final int sheetIndex;
+        private final SheetTexts texts;
+
+        private final Map<String, SharedFormulaMaster> sharedFormulas = new HashMap<>();
+        private final List<ArrayFormula> arrayFormulas = new ArrayList<>();
+        private XSSFEvaluationWorkbook formulaBook;     // only sheet names, enough to parse and render formulas
+
+        private final StringBuilder value = new StringBuilder();
+        private final StringBuilder formula = new StringBuilder();
+        private final StringBuilder inlineString = new StringBuilder();
+
+        private List<CellValue> row;
+        private int rowIndex = -1;
+        private int cellIndex;
+        private String cellType;
+        private boolean hasValue;
+        private boolean hasFormula;
+        private boolean hasInlineString;
+        private String formulaType;
+        private String formulaRef;
+        private String formulaIndex;
+        private StringBuilder target;
+        private boolean inPhonetic;
+
+        SheetHandler(SharedStrings strings, List<String> sheetNames, int sheetIndex, SheetTexts texts) {
+            this.strings = strings;
+            this.sheetNames = sheetNames;
+            this.sheetIndex = sheetIndex;
+            this.texts = texts;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            switch (localName) {
+                case "row" -> {
+                    String r = attributes.getValue("r");
+                    rowIndex = r == null ? rowIndex + 1 : Integer.parseInt(r) - 1;
+                    row = new ArrayList<>();
+                    cellIndex = -1;
+                }
+                case "c" -> {
+                    String r = attributes.getValue("r");
+                    cellIndex = r == null ? cellIndex + 1 : new CellReference(r).getCol();
+                    cellType = attributes.getValue("t");
+                    value.setLength(0);
+                    formula.setLength(0);
+                    inlineString.setLength(0);
+                    hasValue = false;
+                    hasFormula = false;
+                    hasInlineString = false;
+                    formulaType = null;
+                    formulaRef = null;
+                    formulaIndex = null;
+                }
+                case "v" -> {
+                    hasValue = true;
+                    target = value;
+                }
+                case "f" -> {
+                    hasFormula = true;
+                    formulaType = attributes.getValue("t");
+                    formulaRef = attributes.getValue("ref");
+                    formulaIndex = attributes.getValue("si");
+                    target = formula;
+                }
+                case "is" -> hasInlineString = true;
+                case "rPh" -> inPhonetic = true;
+                case "t" -> target = hasInlineString && !inPhonetic ? inlineString : null;
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            switch (localName) {
+                case "v", "f", "t" -> target = null;
+                case "rPh" -> inPhonetic = false;
+                case "c" -> {
+                    while (row.size() < cellIndex) {
+                        row.add(null);
+                    }
+                    row.add(cellValue());
+                }
+                case "row" -> texts.appendRow(rowIndex, row);
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (target != null) {
+                target.append(ch, start, length);
+            }
+        }
+
+        private CellValue cellValue() {
+            if (hasFormula) {
+                return new CellValue(CellType.FORMULA, formulaText());
+            }
+            for (ArrayFormula array : arrayFormulas) {
+                if (array.range.isInRange(rowIndex, cellIndex)) {
+                    return new CellValue(CellType.FORMULA, array.formula);
+                }
+            }
+            if (cellType == null || cellType.equals("n")) {
+                return hasValue
+                        ? new CellValue(CellType.NUMERIC, value.toString())
+                        : new CellValue(CellType.BLANK, "");
+            }
+            return switch (cellType) {
+                case "s" -> new CellValue(
+                        CellType.STRING,
+                        hasValue ? strings.getItemAt(Integer.parseInt(value.toString().trim())).getString() : ""
+                );
+                case "inlineStr" -> new CellValue(
+                        CellType.STRING,
+                        hasInlineString ? new XSSFRichTextString(inlineString.toString()).getString() : value.toString()
+                );
+                case "b" -> new CellValue(CellType.BOOLEAN, "1".equals(value.toString()) ? "TRUE" : "FALSE");
+                case "e" -> new CellValue(CellType.ERROR, value.toString());
+                default -> new CellValue(CellType.STRING, value.toString());
+            };
+        }
+
+        private String formulaText() {
+            if ("array".equals(formulaType) && formulaRef != null) {
+                arrayFormulas.add(new ArrayFormula(CellRangeAddress.valueOf(formulaRef), formula.toString()));
+            }
+            if (!"shared".equals(formulaType) || formulaIndex == null) {
+                return formula.toString();
+            }
+
+            // the formula text is stored only in the first cell of the group, the rest refer to it by index
+            if (formulaRef != null && formula.length() > 0) {
+                CellRangeAddress range = CellRangeAddress.valueOf(formulaRef);
+                sharedFormulas.put(
+                        formulaIndex,
+                        new SharedFormulaMaster(formula.toString(), range.getFirstRow(), range.getFirstColumn())
+                );
+            }
+            SharedFormulaMaster master = sharedFormulas.get(formulaIndex);
+            if (master == null) {
+                return value.toString();
+            }
+
+            try {
+                if (formulaBook == null) {
+                    XSSFWorkbook book = new XSSFWorkbook();
+                    for (String name : sheetNames) {
+                        book.createSheet(name);
+                    }
+                    formulaBook = XSSFEvaluationWorkbook.create(book);
+                }
+                Ptg[] ptgs = FormulaParser.parse(master.formula, formulaBook, FormulaType.CELL, sheetIndex, rowIndex);
+                Ptg[] shifted = new SharedFormula(SpreadsheetVersion.EXCEL2007)
+                        .convertSharedFormulas(ptgs, rowIndex - master.firstRow, cellIndex - master.firstColumn);
+                return FormulaRenderer.toFormulaString(formulaBook, shifted);
+            } catch (RuntimeException e) {
+                // can't be parsed without the rest of the workbook, the cached value is the best we have
+                return value.toString();
+            }
+        }
+    }
+
+    private record SharedFormulaMaster(String formula, int firstRow, int firstColumn) {
+    }
+
+    private record ArrayFormula(CellRangeAddress range, String formula) {
+    }
+
     private enum Action {
         SKIP_EMPTY, SKIP_ALWAYS, APPEND_ALWAYS
     }
@@ -1,15 +1,35 @@
 package com.github.artyomcool.lodinfra.h3common;
 
+import java.io.Closeable;
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.List;
 
-public interface Archive {
+public interface Archive extends Closeable {
 
     Path originalPath();
     List<? extends Element> files();
     void writeHeader(ByteBuffer byteBuffer, int subFilesCount);
 
+    /**
+     * Case-insensitive lookup through {@link #nameIndex()}.
+     */
+    Element find(String name);
+
+    /**
+     * Lazily built on the first call.
+     */
+    NameIndex nameIndex();
+
+    /**
+     * Uses an index built earlier by another instance of the same unchanged archive.
+     */
+    void reuseNameIndex(NameIndex index);
+
+    @Override
+    default void close() {
+    }
+
     interface Element {
         Archive parent();
         String name();
@@ -25,6 +45,7 @@ public interface Archive {
         ByteBuffer asByteBuffer();
         ByteBuffer asOriginalByteBuffer();
 
+        int offset();
         int fileType();
         int compressedSize();
         int uncompressedSize();
@@ -1,11 +1,11 @@
 package com.github.artyomcool.lodinfra.h3common;
 
-import com.github.artyomcool.lodinfra.ui.ImgFilesUtils;
-
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -15,6 +15,10 @@ public class D32 extends DefInfo {
     public static final int TYPE = 0x46323344;  // D32F in LE
 
     public static DefInfo load(ByteBuffer buffer) {
+        return load(buffer, false);
+    }
+
+    public static DefInfo load(ByteBuffer buffer, boolean lazy) {
         DefInfo def = new DefInfo();
         def.type = buffer.getInt();
         int version = buffer.getInt();
@@ -26,6 +30,9 @@ public class D32 extends DefInfo {
         int additionalHeaderSize = buffer.getInt();
         int allGroupsCount = buffer.getInt();
 
+        List<String[]> groupNames = new ArrayList<>(activeGroupsCount);
+        List<int[]> groupOffsets = new ArrayList<>(activeGroupsCount);
+
         int position = buffer.position();
         for (int i = 0; i < activeGroupsCount; i++) {
             buffer.position(position);
@@ -55,47 +62,85 @@ public class D32 extends DefInfo {
             }
 
             position = buffer.position();
+            int[] offsets = new int[framesCount];
             for (int j = 0; j < framesCount; j++) {
-                int offset = buffer.getInt(position + j * 4);
+                offsets[j] = buffer.getInt(position + j * 4);
+            }
+            position += framesCount * 4;
 
-                ByteBuffer bf = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).position(offset);
-                int frameHeaderSize = bf.getInt();
-                int imageSize = bf.getInt();
+            def.groups.add(group);
+            groupNames.add(names);
+            groupOffsets.add(offsets);
+        }
 
-                int fullWidth = bf.getInt();
-                int fullHeight = bf.getInt();
+        int[] distinctOffsets = groupOffsets.stream().flatMapToInt(Arrays::stream).distinct().toArray();
+        List<IntBuffer> decodedPixels = lazy
+                ? null
+                : decodeFrames(buffer, distinctOffsets, offset -> decodeFrame(buffer, offset));
 
-                int width = bf.getInt();
-                int height = bf.getInt();
-                int x = bf.getInt();
-                int y = bf.getInt();
+        // frames shared between groups are stored once, they share decoded pixels as well
+        Map<Integer, DefInfo.Frame> framesByOffset = new HashMap<>();
 
-                int frameInfoSize = bf.getInt();
-                int frameDrawType = bf.getInt();
+        for (int i = 0; i < activeGroupsCount; i++) {
+            DefInfo.Group group = def.groups.get(i);
+            String[] names = groupNames.get(i);
+            int[] offsets = groupOffsets.get(i);
 
-                IntBuffer pixels = IntBuffer.allocate(fullWidth * fullHeight);
-                int[] pixArrays = pixels.array();
-                Arrays.fill(pixArrays, SPEC_COLORS[0]);
-                for (int yy = height - 1; yy >= 0; yy--) {
-                    for (int xx = 0; xx < width; xx++) {
-                        pixArrays[(yy + y) * fullWidth + xx + x] = ImgFilesUtils.d32ToPcxColor(false, bf.getInt());
-                    }
-                }
+            for (int j = 0; j < offsets.length; j++) {
+                int offset = offsets[j];
 
-                ImgFilesUtils.premultiply(pixels.array());
+                int fullWidth = buffer.getInt(offset + 8);
+                int fullHeight = buffer.getInt(offset + 12);
 
-                DefInfo.Frame frame = new DefInfo.Frame(group, fullWidth, fullHeight, pixels);
+                DefInfo.Frame decoded = framesByOffset.get(offset);
+                DefInfo.Frame frame;
+                if (decoded != null) {
+                    frame = new DefInfo.Frame(group, decoded);
+                } else {
+                    // distinct offsets are met in the same order they were decoded
+                    frame = lazy
+                            ? new DefInfo.Frame(group, fullWidth, fullHeight, () -> decodeFrame(buffer, offset))
+                            : new DefInfo.Frame(group, fullWidth, fullHeight, decodedPixels.get(framesByOffset.size()));
+                    framesByOffset.put(offset, frame);
+                }
                 frame.name = names[j];
                 frame.frameDrawType = buffer.getInt(offset + 36);
                 group.frames.add(frame);
             }
-            position += framesCount * 4;
-
-            def.groups.add(group);
         }
         return def;
     }
 
+    private static IntBuffer decodeFrame(ByteBuffer buffer, int offset) {
+        ByteBuffer bf = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).position(offset);
+        int frameHeaderSize = bf.getInt();
+        int imageSize = bf.getInt();
+
+        int fullWidth = bf.getInt();
+        int fullHeight = bf.getInt();
+
+        int width = bf.getInt();
+        int height = bf.getInt();
+        int x = bf.getInt();
+        int y = bf.getInt();
+
+        int frameInfoSize = bf.getInt();
+        int frameDrawType = bf.getInt();
+
+        IntBuffer pixels = IntBuffer.allocate(fullWidth * fullHeight);
+        int[] pixArrays = pixels.array();
+        Arrays.fill(pixArrays, SPEC_COLORS[0]);
+        readBottomUpRows(bf, bf.position(), pixArrays, fullWidth, x, y, width, height);
+
+        for (int yy = y; yy < y + height; yy++) {
+            int row = yy * fullWidth + x;
+            PixelKernels.d32ToPcxColors(pixArrays, row, row + width, false);
+        }
+        PixelKernels.premultiply(pixArrays, 0, pixArrays.length);
+
+        return pixels;
+    }
+
     public static ByteBuffer pack(DefInfo def, Map<DefInfo.Frame, FrameInfo> links) {
         List<Group> groups = def.groups;
         groups.removeIf(g -> g.frames.isEmpty());
@@ -203,7 +248,7 @@ public class D32 extends DefInfo {
 
                     for (int j = height - 1; j >= 0; j--) {
                         for (int i = 0; i < width; i++) {
-                            buffer.putInt(ImgFilesUtils.pcxToD32Color(info.packedFrame.color(i, j)));
+                            buffer.putInt(PixelKernels.pcxToD32Color(info.packedFrame.color(i, j)));
                         }
                     }
 
@@ -6,10 +6,17 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.util.*;
+import java.util.stream.IntStream;
 
 public class Def extends DefInfo {
 
+    private static final int[] IDENTITY = IntStream.range(0, 256).toArray();
+
     public static DefInfo load(ByteBuffer buffer) {
+        return load(buffer, false);
+    }
+
+    public static DefInfo load(ByteBuffer buffer, boolean lazy) {
         DefInfo def = new DefInfo();
 
         def.type = buffer.getInt();
@@ -24,7 +31,8 @@ public class Def extends DefInfo {
         def.palette = palette;
 
         byte[] name = new byte[13];
-        int[] offsets;
+        List<String[]> groupNames = new ArrayList<>(groupCount);
+        List<int[]> groupOffsets = new ArrayList<>(groupCount);
 
         for (int i = 0; i < groupCount; i++) {
             int groupIndex = buffer.getInt();
@@ -46,148 +54,222 @@ public class Def extends DefInfo {
                 }
             }
 
-            offsets = new int[framesCount];
+            int[] offsets = new int[framesCount];
             for (int j = 0; j < framesCount; j++) {
                 offsets[j] = buffer.getInt();
             }
 
             DefInfo.Group group = new DefInfo.Group(def);
             group.groupIndex = groupIndex;
+            def.groups.add(group);
+            groupNames.add(names);
+            groupOffsets.add(offsets);
+        }
 
-            for (int j = 0; j < framesCount; j++) {
-                int offset = offsets[j];
+        int[] distinctOffsets = groupOffsets.stream().flatMapToInt(Arrays::stream).distinct().toArray();
+        // with the standard special colors at the start of the palette every pixel is just a palette index
+        boolean indexed = !lazy && Arrays.equals(palette, 0, SPEC_COLORS.length, SPEC_COLORS, 0, SPEC_COLORS.length);
+        List<Object> decodedFrames = lazy
+                ? null
+                : decodeFrames(buffer, distinctOffsets, offset -> indexed
+                        ? decodeIndexes(buffer, offset)
+                        : decodeFrame(buffer, offset, palette));
+
+        // frames shared between groups are stored once, they share decoded pixels as well
+        Map<Integer, DefInfo.Frame> framesByOffset = new HashMap<>();
 
-                ByteBuffer buf = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).position(offset);
+        for (int i = 0; i < groupCount; i++) {
+            DefInfo.Group group = def.groups.get(i);
+            String[] names = groupNames.get(i);
+            int[] offsets = groupOffsets.get(i);
 
-                int size = buf.getInt();
-                int compression = buf.getInt();
-                int fullWidth = buf.getInt();
-                int fullHeight = buf.getInt();
+            for (int j = 0; j < offsets.length; j++) {
+                int offset = offsets[j];
 
-                int width = buf.getInt();
-                int height = buf.getInt();
-                int x = buf.getInt();
-                int y = buf.getInt();
+                int compression = buffer.getInt(offset + 4);
+                int fullWidth = buffer.getInt(offset + 8);
+                int fullHeight = buffer.getInt(offset + 12);
+
+                DefInfo.Frame decoded = framesByOffset.get(offset);
+                DefInfo.Frame frame;
+                if (decoded != null) {
+                    frame = new DefInfo.Frame(group, decoded);
+                } else {
+                    // distinct offsets are met in the same order they were decoded
+                    Object decodedFrame = lazy ? null : decodedFrames.get(framesByOffset.size());
+                    if (lazy) {
+                        frame = new DefInfo.Frame(group, fullWidth, fullHeight, () -> decodeFrame(buffer, offset, palette));
+                    } else if (indexed) {
+                        frame = new DefInfo.Frame(group, fullWidth, fullHeight, (byte[]) decodedFrame, palette);
+                    } else {
+                        frame = new DefInfo.Frame(group, fullWidth, fullHeight, (IntBuffer) decodedFrame);
+                    }
+                    framesByOffset.put(offset, frame);
+                }
+                frame.name = names[j];
+                frame.compression = compression;
+                group.frames.add(frame);
+            }
+        }
+        return def;
+    }
 
-                int start = buf.position();
+    private static IntBuffer decodeFrame(ByteBuffer buffer, int offset, int[] palette) {
+        return IntBuffer.wrap(decodeFrame(buffer, offset, palette, SPEC_COLORS));
+    }
 
-                IntBuffer pixels = IntBuffer.allocate(fullHeight * fullWidth);
-                int[] pixelsArray = pixels.array();
-                Arrays.fill(pixelsArray, SPEC_COLORS[0]);
+    private static byte[] decodeIndexes(ByteBuffer buffer, int offset) {
+        int[] indexes = decodeFrame(buffer, offset, IDENTITY, IDENTITY);
+        byte[] result = new byte[indexes.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) indexes[i];
+        }
+        return result;
+    }
 
-                int scanLineDiff = fullWidth - width;
-                switch (compression) {
-                    case 0 -> {
-                        int pos = x + y * fullWidth;
-                        for (int i1 = 0; i1 < height; i1++) {
-                            for (int j1 = 0; j1 < width; j1++) {
-                                pixelsArray[pos++] = palette[buf.get() & 0xff];
-                            }
-                            pos += scanLineDiff;
-                        }
+    /**
+     * @param colors      colors of the indexes stored in the frame
+     * @param specColors  colors of the special indexes of packed modes
+     */
+    private static int[] decodeFrame(ByteBuffer buffer, int offset, int[] colors, int[] specColors) {
+        ByteBuffer buf = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).position(offset);
+
+        int size = buf.getInt();
+        int compression = buf.getInt();
+        int fullWidth = buf.getInt();
+        int fullHeight = buf.getInt();
+
+        int width = buf.getInt();
+        int height = buf.getInt();
+        int x = buf.getInt();
+        int y = buf.getInt();
+
+        int start = buf.position();
+
+        int[] pixelsArray = new int[fullHeight * fullWidth];
+        Arrays.fill(pixelsArray, specColors[0]);
+
+        int scanLineDiff = fullWidth - width;
+        switch (compression) {
+            case 0 -> {
+                int pos = x + y * fullWidth;
+                for (int i1 = 0; i1 < height; i1++) {
+                    for (int j1 = 0; j1 < width; j1++) {
+                        pixelsArray[pos++] = colors[buf.get() & 0xff];
                     }
-                    case 1 -> {
-                        int[] offsets1 = new int[height];
-                        for (int i1 = 0; i1 < offsets1.length; i1++) {
-                            offsets1[i1] = buf.getInt() + start;
-                        }
-                        int pos = x + y * fullWidth;
-                        for (int i1 : offsets1) {
-                            buf.position(i1);
-
-                            for (int w = 0; w < width; ) {
-                                int index = (buf.get() & 0xff);
-                                int count = (buf.get() & 0xff) + 1;
-                                for (int j1 = 0; j1 < count; j1++) {
-                                    int c;
-                                    if (index == 0xff) {
-                                        c = palette[buf.get() & 0xff];
-                                    } else {
-                                        c = index < SPEC_COLORS.length ? SPEC_COLORS[index] : palette[index];
-                                    }
-                                    pixelsArray[pos++] = c;
-                                }
-                                w += count;
+                    pos += scanLineDiff;
+                }
+            }
+            case 1 -> {
+                int[] offsets1 = new int[height];
+                for (int i1 = 0; i1 < offsets1.length; i1++) {
+                    offsets1[i1] = buf.getInt() + start;
+                }
+                int pos = x + y * fullWidth;
+                for (int i1 : offsets1) {
+                    buf.position(i1);
+
+                    for (int w = 0; w < width; ) {
+                        int index = (buf.get() & 0xff);
+                        int count = (buf.get() & 0xff) + 1;
+                        for (int j1 = 0; j1 < count; j1++) {
+                            int c;
+                            if (index == 0xff) {
+                                c = colors[buf.get() & 0xff];
+                            } else {
+                                c = index < SPEC_COLORS.length ? specColors[index] : colors[index];
                             }
-                            pos += scanLineDiff;
+                            pixelsArray[pos++] = c;
                         }
+                        w += count;
                     }
-                    case 2 -> {
-                        int[] offsets1 = new int[height];
-                        for (int i1 = 0; i1 < offsets1.length; i1++) {
-                            offsets1[i1] = (buf.getShort() & 0xffff) + start;
-                        }
+                    pos += scanLineDiff;
+                }
+            }
+            case 2 -> {
+                int[] offsets1 = new int[height];
+                for (int i1 = 0; i1 < offsets1.length; i1++) {
+                    offsets1[i1] = (buf.getShort() & 0xffff) + start;
+                }
 
-                        int xx = x;
-                        int pos = x + y * fullWidth;
-                        for (int i1 : offsets1) {
-                            buf.position(i1);
-
-                            for (int w = 0; w < width; ) {
-                                int b = buf.get() & 0xff;
-                                int index = b >> 5;
-                                int count = (b & 0x1f) + 1;
-                                for (int j1 = 0; j1 < count; j1++) {
-                                    pixelsArray[pos++] = index == 0x7 ? palette[buf.get() & 0xff] : SPEC_COLORS[index];
-                                    xx++;
-                                    if (xx >= x + width) {
-                                        pos += scanLineDiff;
-                                        xx = x;
-                                    }
-                                }
-                                w += count;
+                int xx = x;
+                int pos = x + y * fullWidth;
+                for (int i1 : offsets1) {
+                    buf.position(i1);
+
+                    for (int w = 0; w < width; ) {
+                        int b = buf.get() & 0xff;
+                        int index = b >> 5;
+                        int count = (b & 0x1f) + 1;
+                        for (int j1 = 0; j1 < count; j1++) {
+                            pixelsArray[pos++] = index == 0x7 ? colors[buf.get() & 0xff] : specColors[index];
+                            xx++;
+                            if (xx >= x + width) {
+                                pos += scanLineDiff;
+                                xx = x;
                             }
                         }
+                        w += count;
                     }
-                    case 3 -> {
-                        int[] offsets1 = new int[width * height / 32];
-                        for (int i1 = 0; i1 < offsets1.length; i1++) {
-                            offsets1[i1] = (buf.getShort() & 0xffff) + start;
-                        }
-
-                        int xx = x;
-                        int pos = x + y * fullWidth;
-                        for (int i1 : offsets1) {
-                            buf.position(i1);
-
-                            int left = 32;
-                            while (left > 0) {
-                                int b = buf.get() & 0xff;
-                                int index = b >> 5;
-                                int count = (b & 0x1f) + 1;
-
-                                for (int j1 = 0; j1 < count; j1++) {
-                                    pixelsArray[pos++] = index == 0x7 ? palette[buf.get() & 0xff] : SPEC_COLORS[index];
-                                    xx++;
-                                    if (xx >= x + width) {
-                                        pos += scanLineDiff;
-                                        xx = x;
-                                    }
-                                }
+                }
+            }
+            case 3 -> {
+                int[] offsets1 = new int[width * height / 32];
+                for (int i1 = 0; i1 < offsets1.length; i1++) {
+                    offsets1[i1] = (buf.getShort() & 0xffff) + start;
+                }
 
-                                left -= count;
+                int xx = x;
+                int pos = x + y * fullWidth;
+                for (int i1 : offsets1) {
+                    buf.position(i1);
+
+                    int left = 32;
+                    while (left > 0) {
+                        int b = buf.get() & 0xff;
+                        int index = b >> 5;
+                        int count = (b & 0x1f) + 1;
+
+                        for (int j1 = 0; j1 < count; j1++) {
+                            pixelsArray[pos++] = index == 0x7 ? colors[buf.get() & 0xff] : specColors[index];
+                            xx++;
+                            if (xx >= x + width) {
+                                pos += scanLineDiff;
+                                xx = x;
                             }
                         }
+
+                        left -= count;
                     }
                 }
-
-                DefInfo.Frame frame = new DefInfo.Frame(group, fullWidth, fullHeight, pixels);
-                frame.name = names[j];
-                frame.compression = compression;
-                group.frames.add(frame);
             }
-
-            def.groups.add(group);
         }
-        return def;
+
+        return pixelsArray;
     }
 
     public static ByteBuffer pack(DefInfo def, Map<Frame, FrameInfo> links) {
-        ByteBuffer buffer = ByteBuffer.allocate(100 * 1024 * 1024).order(ByteOrder.LITTLE_ENDIAN);
-
         List<Group> groups = new ArrayList<>(def.groups);
         groups.removeIf(g -> g.frames.isEmpty());
 
+        int totalSize = 16 + 256 * 3;
+        for (Group group : groups) {
+            totalSize += 16 + group.frames.size() * (13 + 4);
+        }
+
+        // frames shared between groups are written once
+        FrameEncoder encoder = new FrameEncoder(def.palette);
+        Map<FrameInfo, byte[]> packedFrames = new LinkedHashMap<>();
+        for (FrameInfo frameInfo : links.values()) {
+            if (!packedFrames.containsKey(frameInfo)) {
+                byte[] packed = encoder.encode(frameInfo.packedFrame);
+                packedFrames.put(frameInfo, packed);
+                totalSize += packed.length;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(totalSize).order(ByteOrder.LITTLE_ENDIAN);
+
         int type = def.type;
         int fullWidth = def.fullWidth;
         int fullHeight = def.fullHeight;
@@ -228,58 +310,78 @@ public class Def extends DefInfo {
             }
         }
 
-        Map<Integer, Byte> paletteMap = new HashMap<>();
-        for (int i = 0; i < palette.length; i++) {
-            paletteMap.put(palette[i], (byte) i);
-        }
-
-        for (FrameInfo frameInfo : links.values()) {
-            for (Frame frame : frameInfo.frames) {
+        for (Map.Entry<FrameInfo, byte[]> entry : packedFrames.entrySet()) {
+            for (Frame frame : entry.getKey().frames) {
                 buffer.putInt(offsetToPutOffset.get(frame), buffer.position());
             }
-            PackedFrame packedFrame = frameInfo.packedFrame;
+            buffer.put(entry.getValue());
+        }
+        return buffer.flip();
+    }
 
-            int offsetOfSize = buffer.position();
-            buffer.putInt(0);   // size
-            buffer.putInt(packedFrame.frame.compression);
-            buffer.putInt(packedFrame.frame.fullWidth);
-            buffer.putInt(packedFrame.frame.fullHeight);
+    /**
+     * Encodes frames one by one, scanline buffers and the output buffer are reused between frames.
+     */
+    private static class FrameEncoder {
+        private final int[] palette;
+        private final PaletteIndex paletteIndex;
+
+        private int[] scanline = new int[0];
+        private int[] indexes = new int[0];
+        private ByteBuffer buffer = ByteBuffer.allocate(0);
 
+        FrameEncoder(int[] palette) {
+            this.palette = palette;
+            this.paletteIndex = new PaletteIndex(palette);
+        }
+
+        byte[] encode(PackedFrame packedFrame) {
+            Box box = packedFrame.box;
             if (packedFrame.frame.compression == 3) {
-                int x = packedFrame.box.x / 32 * 32;
-                int w = packedFrame.box.width + (packedFrame.box.x - x);
+                int x = box.x / 32 * 32;
+                int w = box.width + (box.x - x);
                 if (w % 32 != 0) {
                     w = (w / 32 + 1) * 32;
                 }
-                packedFrame = new PackedFrame(packedFrame.frame, new Box(x, packedFrame.box.y, w, packedFrame.box.height));
+                box = new Box(x, box.y, w, box.height);
+                packedFrame = new PackedFrame(packedFrame.frame, box);
             }
-            buffer.putInt(packedFrame.box.width);
-            buffer.putInt(packedFrame.box.height);
-            buffer.putInt(packedFrame.box.x);
-            buffer.putInt(packedFrame.box.y);
+
+            // the worst case is a run of a single non-special color for every pixel
+            ensureCapacity(box.width, 32 + box.height * 4 + box.width * box.height * 3);
+
+            buffer.putInt(0);   // size
+            buffer.putInt(packedFrame.frame.compression);
+            buffer.putInt(packedFrame.frame.fullWidth);
+            buffer.putInt(packedFrame.frame.fullHeight);
+
+            buffer.putInt(box.width);
+            buffer.putInt(box.height);
+            buffer.putInt(box.x);
+            buffer.putInt(box.y);
 
             switch (packedFrame.frame.compression) {
                 case 0 -> {
-                    for (int y = 0; y < packedFrame.box.height; y++) {
-                        for (int x = 0; x < packedFrame.box.width; x++) {
-                            buffer.put(paletteMap.get(packedFrame.color(x, y)));
+                    for (int y = 0; y < box.height; y++) {
+                        int[] scanline = indexes(packedFrame, y, 0, box.width);
+                        for (int x = 0; x < box.width; x++) {
+                            buffer.put((byte) scanline[x]);
                         }
                     }
                 }
                 case 1 -> {
                     int offsetsPos = buffer.position();
 
-                    buffer.position(offsetsPos + packedFrame.box.height * 4);
-                    for (int y = 0; y < packedFrame.box.height; y++) {
-                        int[] scanline = packedFrame.scanline(y);
+                    buffer.position(offsetsPos + box.height * 4);
+                    for (int y = 0; y < box.height; y++) {
+                        int[] scanline = indexes(packedFrame, y, 0, box.width);
                         int offset = buffer.position();
-                        for (int x = 0; x < packedFrame.box.width; ) {
-                            int color = scanline[x];
-                            int index = paletteMap.get(color) & 0xff;
+                        for (int x = 0; x < box.width; ) {
+                            int index = scanline[x];
                             if (index < 8) {
                                 int count = 1;
                                 int xx = x + 1;
-                                while (xx < packedFrame.box.width && count < 256 && scanline[xx] == color) {
+                                while (xx < box.width && count < 256 && scanline[xx] == index) {
                                     count++;
                                     xx++;
                                 }
@@ -289,7 +391,7 @@ public class Def extends DefInfo {
                             } else {
                                 int count = 1;
                                 int xx = x;
-                                while (xx + 1 < packedFrame.box.width && count < 256 && (paletteMap.get(scanline[xx + 1]) & 0xff) >= 8) {
+                                while (xx + 1 < box.width && count < 256 && scanline[xx + 1] >= 8) {
                                     count++;
                                     xx++;
                                 }
@@ -297,7 +399,7 @@ public class Def extends DefInfo {
                                 buffer.put((byte) 0xff);
                                 buffer.put((byte) (count - 1));
                                 while (x <= xx) {
-                                    buffer.put(paletteMap.get(scanline[x]));
+                                    buffer.put((byte) scanline[x]);
                                     x++;
                                 }
                             }
@@ -308,17 +410,16 @@ public class Def extends DefInfo {
                 case 2 -> {
                     int offsetsPos = buffer.position();
 
-                    buffer.position(offsetsPos + packedFrame.box.height * 2);
-                    for (int y = 0; y < packedFrame.box.height; y++) {
-                        int[] scanline = packedFrame.scanline(y);
+                    buffer.position(offsetsPos + box.height * 2);
+                    for (int y = 0; y < box.height; y++) {
+                        int[] scanline = indexes(packedFrame, y, 0, box.width);
                         int offset = buffer.position();
-                        for (int x = 0; x < packedFrame.box.width; ) {
-                            int color = scanline[x];
-                            int index = paletteMap.get(color) & 0xff;
+                        for (int x = 0; x < box.width; ) {
+                            int index = scanline[x];
                             if (index < 6) {
                                 int count = 1;
                                 int xx = x + 1;
-                                while (xx < packedFrame.box.width && count < 32 && scanline[xx] == color) {
+                                while (xx < box.width && count < 32 && scanline[xx] == index) {
                                     count++;
                                     xx++;
                                 }
@@ -327,14 +428,14 @@ public class Def extends DefInfo {
                             } else {
                                 int count = 1;
                                 int xx = x;
-                                while (xx + 1 < packedFrame.box.width && count < 32 && (paletteMap.get(scanline[xx + 1]) & 0xff) >= 6) {
+                                while (xx + 1 < box.width && count < 32 && scanline[xx + 1] >= 6) {
                                     count++;
                                     xx++;
                                 }
 
                                 buffer.put((byte) (7 << 5 | (count - 1)));
                                 while (x <= xx) {
-                                    buffer.put(paletteMap.get(scanline[x++]));
+                                    buffer.put((byte) scanline[x++]);
                                 }
                             }
                         }
@@ -342,38 +443,36 @@ public class Def extends DefInfo {
                     }
                 }
                 case 3 -> {
-                    int blocksCount = packedFrame.box.width * packedFrame.box.height / 32;
+                    int blocksCount = box.width * box.height / 32;
                     int offsetsPos = buffer.position();
 
                     buffer.position(offsetsPos + blocksCount * 2);
 
                     int i = 0;
-                    for (int y = 0; y < packedFrame.box.height; y++) {
-                        for (int xw = 0; xw < packedFrame.box.width; xw += 32) {
-                            int[] scanline = new int[32];
-                            System.arraycopy(packedFrame.scanline(y, xw, 32), 0, scanline, 0, 32);
+                    for (int y = 0; y < box.height; y++) {
+                        for (int xw = 0; xw < box.width; xw += 32) {
+                            int[] scanline = indexes(packedFrame, y, xw, 32);
                             int offset = buffer.position();
-                            for (int x = 0; x < scanline.length; ) {
-                                int color = scanline[x];
-                                int index = paletteMap.get(color) & 0xff;
+                            for (int x = 0; x < 32; ) {
+                                int index = scanline[x];
                                 int count = 0;
                                 int xx = x + 1;
                                 if (index < 6) {
-                                    while (xx < scanline.length && scanline[xx] == color) {
+                                    while (xx < 32 && scanline[xx] == index) {
                                         count++;
                                         xx++;
                                     }
                                     buffer.put((byte) (index << 5 | count));
                                     x = xx;
                                 } else {
-                                    while (xx < scanline.length && (paletteMap.get(scanline[xx]) & 0xff) >= 6) {
+                                    while (xx < 32 && scanline[xx] >= 6) {
                                         count++;
                                         xx++;
                                     }
 
                                     buffer.put((byte) (7 << 5 | count));
                                     while (x < xx) {
-                                        buffer.put(paletteMap.get(scanline[x++]));
+                                        buffer.put((byte) scanline[x++]);
                                     }
                                 }
                             }
@@ -383,9 +482,32 @@ public class Def extends DefInfo {
                 }
             }
 
-            buffer.putInt(offsetOfSize, buffer.position() - offsetOfSize);
+            buffer.putInt(0, buffer.position());
+            return Arrays.copyOf(buffer.array(), buffer.position());
+        }
+
+        private int[] indexes(PackedFrame packedFrame, int y, int dx, int w) {
+            // indexes of a frame loaded with the same palette are written as is
+            if (packedFrame.frame.indexes() != null && packedFrame.frame.indexedPalette() == palette) {
+                return packedFrame.indexes(y, dx, w, indexes);
+            }
+            packedFrame.scanline(y, dx, w, scanline);
+            for (int x = 0; x < w; x++) {
+                indexes[x] = paletteIndex.requireIndexOf(scanline[x]);
+            }
+            return indexes;
+        }
+
+        private void ensureCapacity(int width, int frameSize) {
+            if (scanline.length < width) {
+                scanline = new int[width];
+                indexes = new int[width];
+            }
+            if (buffer.capacity() < frameSize) {
+                buffer = ByteBuffer.allocate(frameSize).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            buffer.clear();
         }
-        return ByteBuffer.wrap(Arrays.copyOf(buffer.array(), buffer.position())).order(ByteOrder.LITTLE_ENDIAN);
     }
 
 }
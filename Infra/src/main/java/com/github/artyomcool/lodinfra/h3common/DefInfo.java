@@ -1,5 +1,6 @@
 package com.github.artyomcool.lodinfra.h3common;
 
+import com.github.artyomcool.lodinfra.ContentHash;
 import com.github.artyomcool.lodinfra.ui.Box;
 import com.github.artyomcool.lodinfra.ui.DefType;
 import com.github.artyomcool.lodinfra.ui.ImgFilesUtils;
@@ -8,11 +9,10 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.nio.file.Path;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
-
-import static com.github.artyomcool.lodinfra.ui.ImgFilesUtils.colorDifference;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 
 public class DefInfo {
 
@@ -132,7 +132,7 @@ public class DefInfo {
                 if (type == DefType.DefAdventureObject.type || type == DefType.DefAdventureHero.type) {
                     return  3;
                 } else if (type == DefType.DefGroundTile.type) {
-                    return hasSpecialColors(frame.pixels.duplicate()) ? 2 : 0;
+                    return hasSpecialColors(frame.pixels().duplicate()) ? 2 : 0;
                 } else {
                     return  1;
                 }
@@ -150,7 +150,7 @@ public class DefInfo {
                 if (type == DefType.DefAdventureObject.type || type == DefType.DefAdventureHero.type) {
                     fr.compression = 3;
                 } else if (type == DefType.DefGroundTile.type) {
-                    fr.compression = hasSpecialColors(frame.pixels.duplicate()) ? 2 : 0;
+                    fr.compression = hasSpecialColors(frame.pixels().duplicate()) ? 2 : 0;
                 } else {
                     fr.compression = 1;
                 }
@@ -162,14 +162,7 @@ public class DefInfo {
     }
 
     private static boolean hasSpecialColors(IntBuffer pixels) {
-        while (pixels.hasRemaining()) {
-            for (int specColor : SPEC_COLORS) {
-                if (pixels.get() == specColor) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        return PixelKernels.containsAny(pixels, SPEC_COLORS);
     }
 
     public Frame first() {
@@ -212,8 +205,7 @@ public class DefInfo {
         public final Group group;
         public final int fullWidth;
         public final int fullHeight;
-        public final IntBuffer pixels;
-        public final String pixelsSha;
+        private final PixelsSource source;
 
         public String name;
         /*
@@ -226,15 +218,40 @@ public class DefInfo {
         public int frameDrawType = 0; // 0 - normal, 1 - lightening
 
         public Frame(Group group, int fullWidth, int fullHeight, IntBuffer pixels) {
-            this(group, fullWidth, fullHeight, pixels, sha256(pixels));
+            this(group, fullWidth, fullHeight, pixels, null);
         }
 
-        public Frame(Group group, int fullWidth, int fullHeight, IntBuffer pixels, String sha256) {
+        /**
+         * @param hash hash of the pixels if it is already known, null to calculate it on demand
+         */
+        public Frame(Group group, int fullWidth, int fullHeight, IntBuffer pixels, ContentHash hash) {
             this.group = group;
             this.fullWidth = fullWidth;
             this.fullHeight = fullHeight;
-            this.pixels = pixels;
-            this.pixelsSha = sha256;
+            this.source = new PixelsSource(pixels, null, null, null);
+            this.source.hash = hash;
+        }
+
+        /**
+         * Frame that is decoded on the first access to its pixels, decoded pixels are kept in a bounded cache,
+         * so they can be decoded again later.
+         */
+        public Frame(Group group, int fullWidth, int fullHeight, Supplier<IntBuffer> decoder) {
+            this.group = group;
+            this.fullWidth = fullWidth;
+            this.fullHeight = fullHeight;
+            this.source = new PixelsSource(null, decoder, null, null);
+        }
+
+        /**
+         * Frame of an 8-bit image, it keeps a palette index per pixel and expands them to colors on demand,
+         * in the same bounded cache as frames decoded on demand.
+         */
+        public Frame(Group group, int fullWidth, int fullHeight, byte[] indexes, int[] palette) {
+            this.group = group;
+            this.fullWidth = fullWidth;
+            this.fullHeight = fullHeight;
+            this.source = new PixelsSource(null, () -> expand(indexes, palette), indexes, palette);
         }
 
         public Frame(Group group, Frame frame) {
@@ -243,23 +260,43 @@ public class DefInfo {
             this.fullHeight = frame.fullHeight;
             this.compression = frame.compression;
             this.name = frame.name;
-            this.pixels = frame.pixels;
-            this.pixelsSha = frame.pixelsSha;
-        }
-
-        private static String sha256(IntBuffer pixels) {
-            ByteBuffer buffer = ByteBuffer.allocate(pixels.remaining() * 4);
-            IntBuffer ib = buffer.asIntBuffer();
-            ib.put(pixels.duplicate());
-            MessageDigest digest;
-            try {
-                digest = MessageDigest.getInstance("SHA-256");
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException(e);
+            this.source = frame.source;
+        }
+
+        public IntBuffer pixels() {
+            return source.pixels != null ? source.pixels : DecodedPixels.get(source.decoder);
+        }
+
+        /**
+         * @return palette index per pixel or null if the frame is not indexed
+         */
+        public byte[] indexes() {
+            return source.indexes;
+        }
+
+        /**
+         * @return palette the indexes refer to or null if the frame is not indexed
+         */
+        public int[] indexedPalette() {
+            return source.palette;
+        }
+
+        private static IntBuffer expand(byte[] indexes, int[] palette) {
+            int[] pixels = new int[indexes.length];
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = palette[indexes[i] & 0xff];
             }
-            buffer.limit(ib.position() * 4);
-            digest.update(buffer);
-            return HexFormat.of().formatHex(digest.digest());
+            return IntBuffer.wrap(pixels);
+        }
+
+        public ContentHash pixelsHash() {
+            ContentHash hash = source.hash;
+            if (hash == null) {
+                // pixels decoded only for the hash are not cached, not to evict the shown ones
+                hash = ContentHash.of(source.pixels != null ? source.pixels : DecodedPixels.getOrDecode(source.decoder));
+                source.hash = hash;
+            }
+            return hash;
         }
 
         public static IntBuffer emptyPixels(int w, int h) {
@@ -288,14 +325,15 @@ public class DefInfo {
         }
 
         public int color(int x, int y) {
-            return ImgFilesUtils.unmultiply(pixels.get(x + y * fullWidth));
+            return PixelKernels.unmultiply(pixels().get(x + y * fullWidth));
         }
 
         public int colorMul(int x, int y) {
-            return pixels.get(x + y * fullWidth);
+            return pixels().get(x + y * fullWidth);
         }
 
         public IntBuffer pixelsWithSize(int w, int h) {
+            IntBuffer pixels = pixels();
             if (fullWidth == w && fullHeight == h) {
                 return pixels.duplicate();
             }
@@ -310,8 +348,18 @@ public class DefInfo {
     }
 
     public static DefInfo load(Path path) {
+        return load(path, false);
+    }
+
+    /**
+     * @param lazy decode frames on demand, file content is copied to the heap and kept while frames are alive
+     */
+    public static DefInfo load(Path path, boolean lazy) {
         DefInfo result = ImgFilesUtils.processFile(path, null, buffer -> {
-            DefInfo def = DefInfo.load(buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN));
+            if (lazy) {
+                buffer = ByteBuffer.allocate(buffer.remaining()).put(buffer.duplicate()).flip();
+            }
+            DefInfo def = DefInfo.load(buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN), lazy);
             if (def != null) {
                 def.path = path;
                 int i = 0;
@@ -335,6 +383,13 @@ public class DefInfo {
     }
 
     public static DefInfo load(ByteBuffer buffer) {
+        return load(buffer, false);
+    }
+
+    /**
+     * @param lazy decode frames on demand, the buffer should not be changed or unmapped while frames are alive
+     */
+    public static DefInfo load(ByteBuffer buffer, boolean lazy) {
         int type = buffer.getInt(buffer.position());
         switch (type) {
             case 0x40,          // default def
@@ -345,10 +400,10 @@ public class DefInfo {
                     0x46,       // mouse pointer
                     0x47,       // interface
                     0x49 -> {   // combat hero
-                return Def.load(buffer);
+                return Def.load(buffer, lazy);
             }
             case 0x46323344 -> { // D32F
-                return D32.load(buffer);
+                return D32.load(buffer, lazy);
             }
             case 0x46323350 -> { // P32F
                 return P32.load(buffer);
@@ -398,7 +453,7 @@ public class DefInfo {
             result = 31 * result + frame.fullHeight;
             result = 31 * result + frame.compression;
             result = 31 * result + frame.frameDrawType;
-            result = 31 * result + frame.pixelsSha.hashCode();
+            result = 31 * result + frame.pixelsHash().hashCode();
             return result;
         }
 
@@ -407,29 +462,44 @@ public class DefInfo {
         }
 
         public int[] scanline(int y) {
-            int[] scanline = new int[box.width];
-            frame.pixels.get(box.x + (y + box.y) * frame.fullWidth, scanline);
-            for (int i = 0; i < scanline.length; i++) {
-                scanline[i] = ImgFilesUtils.unmultiply(scanline[i]);
-            }
-            return scanline;
+            return scanline(y, 0, box.width, new int[box.width]);
         }
 
         public int[] scanline(int y, int dx, int w) {
-            int[] scanline = new int[w];
+            return scanline(y, dx, w, new int[w]);
+        }
+
+        /**
+         * Fills first w elements of the given array, pixels out of the frame are transparent.
+         */
+        public int[] scanline(int y, int dx, int w, int[] scanline) {
             if (y + box.y >= frame.fullHeight) {
-                Arrays.fill(scanline, SPEC_COLORS[0]);
+                Arrays.fill(scanline, 0, w, SPEC_COLORS[0]);
                 return scanline;
             }
-            w = Math.min(w, frame.fullWidth - (box.x + dx));
-            frame.pixels.get(box.x + dx + (y + box.y) * frame.fullWidth, scanline, 0, w);
-            for (int i = 0; i < w; i++) {
-                scanline[i] = ImgFilesUtils.unmultiply(scanline[i]);
+            int inFrame = Math.min(w, frame.fullWidth - (box.x + dx));
+            frame.pixels().get(box.x + dx + (y + box.y) * frame.fullWidth, scanline, 0, inFrame);
+            PixelKernels.unmultiply(scanline, 0, inFrame);
+            Arrays.fill(scanline, inFrame, w, SPEC_COLORS[0]);
+            return scanline;
+        }
+
+        /**
+         * Same as {@link #scanline(int, int, int, int[])} but for indexed frames, pixels out of the frame have index 0.
+         */
+        public int[] indexes(int y, int dx, int w, int[] indexes) {
+            if (y + box.y >= frame.fullHeight) {
+                Arrays.fill(indexes, 0, w, 0);
+                return indexes;
             }
-            for (int i = w; i < scanline.length; i++) {
-                scanline[i] = SPEC_COLORS[0];
+            byte[] frameIndexes = frame.indexes();
+            int inFrame = Math.min(w, frame.fullWidth - (box.x + dx));
+            int start = box.x + dx + (y + box.y) * frame.fullWidth;
+            for (int i = 0; i < inFrame; i++) {
+                indexes[i] = frameIndexes[start + i] & 0xff;
             }
-            return scanline;
+            Arrays.fill(indexes, inFrame, w, 0);
+            return indexes;
         }
 
         @Override
@@ -445,7 +515,7 @@ public class DefInfo {
             if (frame.compression != that.frame.compression) return false;
             if (frame.frameDrawType != that.frame.frameDrawType) return false;
             if (!Objects.equals(box, that.box)) return false;
-            return Objects.equals(frame.pixelsSha, that.frame.pixelsSha);
+            return frame.pixelsHash().equals(that.frame.pixelsHash());
         }
 
         @Override
@@ -508,7 +578,6 @@ public class DefInfo {
             for (int j = 0; j < Math.max(oneFrames, twoFrames); j++) {
                 DefInfo.Frame oneFrame = oneFrames > j ? oneGroup.frames.get(j) : null;
                 DefInfo.Frame twoFrame = twoFrames > j ? twoGroup.frames.get(j) : null;
-                boolean hasChanges = false;
 
                 int w1 = oneFrame != null ? oneFrame.fullWidth : 0;
                 int w2 = twoFrame != null ? twoFrame.fullWidth : 0;
@@ -518,33 +587,9 @@ public class DefInfo {
                 int w = Math.max(w1, w2);
                 int h = Math.max(h1, h2);
 
-                IntBuffer b1 = oneFrame == null ? IntBuffer.allocate(w * h) : oneFrame.pixelsWithSize(w, h);
-                IntBuffer b2 = twoFrame == null ? IntBuffer.allocate(w * h) : twoFrame.pixelsWithSize(w, h);
-
-                IntBuffer br = IntBuffer.allocate(w * h);
-                for (int i = w * h - 1; i >= 0; i--) {
-                    int d = colorDifference(b1.get(i), b2.get(i));
-                    if (d != 0) {
-                        hasChanges = true;
-                    }
-                    if (d == 0) {
-                        d = 0xff00ffff;
-                    } else if (d < 0x10) {
-                        d = 256 / 16 * d;
-                        d = 0xff000000 | d << 8;
-                    } else if (d < 0x50) {
-                        d = 256 / 0x40 * (d - 0x10);
-                        d = 0xff00ff00 | d << 16;
-                    } else if (d < 0x90) {
-                        d = 256 / 0x40 * (d - 0x50);
-                        d = 0xffff0000 | (255 - d) << 8;
-                    } else {
-                        d = (d - 0x90) * 2;
-                        d = 0xffff0000 | d;
-                    }
-                    br.put(i, d);
-                }
-                DefInfo.Frame diffFrame = new DefInfo.Frame(group, w, h, br);
+                // the diff image is built only when the frame is shown
+                boolean hasChanges = hasChanges(oneFrame, twoFrame);
+                DefInfo.Frame diffFrame = new DefInfo.Frame(group, w, h, () -> diffPixels(oneFrame, twoFrame, w, h));
                 diffFrame.name = (hasChanges ? "D" : "S") + "_" + (twoFrame == null ? "N" : twoFrame.name) + "->" + (oneFrame == null ? "N" : oneFrame.name);
                 diffFrame.compression = hasChanges ? -1 : -2;
                 group.frames.add(diffFrame);
@@ -554,31 +599,172 @@ public class DefInfo {
         return result;
     }
 
+    private static IntBuffer pixelsWithSize(Frame frame, int w, int h) {
+        return frame == null ? IntBuffer.allocate(w * h) : frame.pixelsWithSize(w, h);
+    }
+
+    // no other difference color has zero red with full green and blue
+    private static final int SAME_PIXEL = 0xff00ffff;
+
+    private static IntBuffer diffPixels(Frame oneFrame, Frame twoFrame, int w, int h) {
+        int[] b1 = array(pixelsWithSize(oneFrame, w, h), w * h);
+        int[] b2 = array(pixelsWithSize(twoFrame, w, h), w * h);
+
+        int[] br = new int[w * h];
+        PixelKernels.colorDifference(b1, b2, br, w * h);
+        for (int i = w * h - 1; i >= 0; i--) {
+            int d = br[i];
+            if (d == 0) {
+                d = SAME_PIXEL;
+            } else if (d < 0x10) {
+                d = 256 / 16 * d;
+                d = 0xff000000 | d << 8;
+            } else if (d < 0x50) {
+                d = 256 / 0x40 * (d - 0x10);
+                d = 0xff00ff00 | d << 16;
+            } else if (d < 0x90) {
+                d = 256 / 0x40 * (d - 0x50);
+                d = 0xffff0000 | (255 - d) << 8;
+            } else {
+                d = (d - 0x90) * 2;
+                d = 0xffff0000 | d;
+            }
+            br[i] = d;
+        }
+        return IntBuffer.wrap(br);
+    }
+
+    private static int[] array(IntBuffer pixels, int length) {
+        if (pixels.hasArray() && pixels.arrayOffset() == 0 && pixels.position() == 0) {
+            return pixels.array();
+        }
+        int[] result = new int[length];
+        pixels.get(pixels.position(), result);
+        return result;
+    }
+
+    private static boolean hasChanges(Frame oneFrame, Frame twoFrame) {
+        if (oneFrame == null || twoFrame == null) {
+            return oneFrame != twoFrame;
+        }
+        return oneFrame.fullWidth != twoFrame.fullWidth
+                || oneFrame.fullHeight != twoFrame.fullHeight
+                || !oneFrame.pixelsHash().equals(twoFrame.pixelsHash());
+    }
+
     public static Box calculateTransparent(int w, int h, IntBuffer pixels) {
-        int left = Integer.MAX_VALUE;
-        int top = Integer.MAX_VALUE;
-        int right = Integer.MIN_VALUE;
-        int bottom = Integer.MIN_VALUE;
-
-        int transparent = SPEC_COLORS[0];
-
-        pixels = pixels.duplicate();
-        for (int y = 0; y < h; y++) {
-            for (int x = 0; x < w; x++) {
-                int color = pixels.get();
-                if (color != transparent) {
-                    left = Math.min(x, left);
-                    right = Math.max(x, right);
-                    top = Math.min(y, top);
-                    bottom = Math.max(y, bottom);
+        int[] bounds = PixelKernels.bounds(w, h, pixels, SPEC_COLORS[0]);
+        if (bounds == null) {
+            return new Box(0, 0, 1, 1);
+        }
+
+        return new Box(bounds[0], bounds[1], bounds[2] - bounds[0] + 1, bounds[3] - bounds[1] + 1);
+    }
+
+    /**
+     * Copies bottom-up rows of little-endian ints to the box of the pixels, whole rows at once.
+     */
+    static void readBottomUpRows(ByteBuffer buffer, int offset, int[] pixels, int stride, int x, int y, int width, int height) {
+        IntBuffer rows = buffer.duplicate().position(offset).slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        for (int yy = y + height - 1; yy >= y; yy--) {
+            rows.get(pixels, yy * stride + x, width);
+        }
+    }
+
+    // less pixels are decoded faster than tasks are scheduled
+    private static final long PARALLEL_DECODE_PIXELS = 256 * 256;
+
+    /**
+     * Decodes frames stored at the given offsets of a def file, in the fork-join pool if there is enough work.
+     * Frame header should have full width and height at offsets 8 and 12.
+     *
+     * @return decoded frames in the same order as offsets
+     */
+    @SuppressWarnings("unchecked")
+    static <T> List<T> decodeFrames(ByteBuffer buffer, int[] offsets, IntFunction<T> decoder) {
+        long pixels = 0;
+        for (int offset : offsets) {
+            pixels += (long) buffer.getInt(offset + 8) * buffer.getInt(offset + 12);
+        }
+
+        Object[] result = new Object[offsets.length];
+        IntStream indexes = IntStream.range(0, offsets.length);
+        if (offsets.length > 1 && pixels >= PARALLEL_DECODE_PIXELS) {
+            indexes = indexes.parallel();
+        }
+        indexes.forEach(i -> result[i] = decoder.apply(offsets[i]));
+        return (List<T>) Arrays.asList(result);
+    }
+
+    /**
+     * Pixels and their hash, shared by frames that are copies of each other.
+     */
+    private static class PixelsSource {
+        final IntBuffer pixels;     // null for frames decoded on demand
+        final Supplier<IntBuffer> decoder;
+        final byte[] indexes;       // not null for indexed frames
+        final int[] palette;
+        volatile ContentHash hash;
+
+        PixelsSource(IntBuffer pixels, Supplier<IntBuffer> decoder, byte[] indexes, int[] palette) {
+            this.pixels = pixels;
+            this.decoder = decoder;
+            this.indexes = indexes;
+            this.palette = palette;
+        }
+    }
+
+    /**
+     * Pixels of frames decoded on demand, least recently used ones are dropped when total size exceeds the limit.
+     */
+    private static class DecodedPixels {
+        private static final long MAX_PIXELS = 32 * 1024 * 1024;
+
+        private static final Map<Supplier<IntBuffer>, IntBuffer> decoded = new LinkedHashMap<>(16, 0.75f, true);
+        private static long totalPixels = 0;
+
+        static IntBuffer get(Supplier<IntBuffer> decoder) {
+            synchronized (decoded) {
+                IntBuffer pixels = decoded.get(decoder);
+                if (pixels != null) {
+                    return pixels;
                 }
             }
+
+            return put(decoder, decoder.get());
         }
 
-        if (left == Integer.MAX_VALUE) {
-            return new Box(0, 0, 1, 1);
+        /**
+         * @return cached pixels if any, otherwise newly decoded ones, that are not cached
+         */
+        static IntBuffer getOrDecode(Supplier<IntBuffer> decoder) {
+            synchronized (decoded) {
+                IntBuffer pixels = decoded.get(decoder);
+                if (pixels != null) {
+                    return pixels;
+                }
+            }
+            return decoder.get();
         }
 
-        return new Box(left, top, right - left + 1, bottom - top + 1);
+        /**
+         * @return pixels that are already decoded if any, the given ones otherwise
+         */
+        static IntBuffer put(Supplier<IntBuffer> decoder, IntBuffer pixels) {
+            synchronized (decoded) {
+                IntBuffer existing = decoded.putIfAbsent(decoder, pixels);
+                if (existing != null) {
+                    return existing;
+                }
+                totalPixels += pixels.capacity();
+
+                Iterator<IntBuffer> iterator = decoded.values().iterator();
+                while (totalPixels > MAX_PIXELS && decoded.size() > 1) {
+                    totalPixels -= iterator.next().capacity();
+                    iterator.remove();
+                }
+            }
+            return pixels;
+        }
     }
 }
@@ -1,12 +1,16 @@
 package com.github.artyomcool.lodinfra.h3common;
 
 import com.github.artyomcool.lodinfra.LodType;
+import com.github.artyomcool.lodinfra.Utils;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.DataFormatException;
@@ -15,6 +19,7 @@ import java.util.zip.Inflater;
 public class LodFile implements Archive {
 
     public static final int MAGIC = 0x00444f4c;   // LOD\0 in little endian
+    private static final int SUB_FILE_META_SIZE = 32;
 
     public static class SubFileMeta implements Element {
         public LodFile parent;
@@ -61,6 +66,11 @@ public class LodFile implements Archive {
             return nameAsString;
         }
 
+        @Override
+        public int offset() {
+            return globalOffsetInFile;
+        }
+
         @Override
         public int fileType() {
             return fileType;
@@ -84,7 +94,10 @@ public class LodFile implements Archive {
     public int fileUseFlag;
     public int subFilesCount;
     public byte[] junk = new byte[80];
-    public List<SubFileMeta> subFiles;
+    public List<SubFileMeta> subFiles;  // lazy, see files()
+
+    private int subFilesOffset;
+    private NameIndex nameIndex;
 
     @Override
     public Path originalPath() {
@@ -93,9 +106,65 @@ public class LodFile implements Archive {
 
     @Override
     public List<SubFileMeta> files() {
+        if (subFiles == null) {
+            subFiles = new ArrayList<>(subFilesCount);
+            for (int i = 0; i < subFilesCount; i++) {
+                subFiles.add(readMeta(subFilesOffset + i * SUB_FILE_META_SIZE));
+            }
+        }
         return subFiles;
     }
 
+    @Override
+    public Element find(String name) {
+        if (name.length() > NameIndex.KEY_SIZE) {
+            return null;    // LOD names are 16 bytes at most
+        }
+        int index = nameIndex().indexOf(name);
+        if (index == -1) {
+            return null;
+        }
+        return subFiles != null ? subFiles.get(index) : readMeta(subFilesOffset + index * SUB_FILE_META_SIZE);
+    }
+
+    @Override
+    public NameIndex nameIndex() {
+        if (nameIndex == null) {
+            nameIndex = originalData == null
+                    ? NameIndex.of(files())
+                    : NameIndex.of(originalData, subFilesOffset, SUB_FILE_META_SIZE, subFilesCount);
+        }
+        return nameIndex;
+    }
+
+    @Override
+    public void reuseNameIndex(NameIndex index) {
+        nameIndex = index;
+    }
+
+    @Override
+    public void close() {
+        if (originalData instanceof MappedByteBuffer mapped) {
+            Utils.unmap(mapped);
+        }
+    }
+
+    private SubFileMeta readMeta(int offset) {
+        ByteBuffer byteBuffer = originalData.duplicate().order(ByteOrder.LITTLE_ENDIAN).position(offset);
+
+        SubFileMeta meta = new SubFileMeta();
+        meta.parent = this;
+
+        byteBuffer.get(meta.name);
+        meta.nameAsString = new String(meta.name, 0, indexOfZero(meta.name));
+        meta.globalOffsetInFile = byteBuffer.getInt();
+        meta.uncompressedSize = byteBuffer.getInt();
+        meta.fileType = byteBuffer.getInt();
+        meta.compressedSize = byteBuffer.getInt();
+
+        return meta;
+    }
+
     @Override
     public void writeHeader(ByteBuffer byteBuffer, int subFilesCount) {
         byteBuffer.putInt(magic);
@@ -118,10 +187,26 @@ public class LodFile implements Archive {
         return parse(file, ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN));
     }
 
+    /**
+     * Maps the file instead of reading it, only the header table is parsed, and resources are sliced out
+     * of the mapping on demand. The result should be closed to release the mapping.
+     */
+    public static Archive map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return parse(file, buffer);
+        }
+    }
+
     public static Archive loadOrCreate(Path lodPath) throws IOException {
         return Files.exists(lodPath) ? load(lodPath) : createEmpty(lodPath);
     }
 
+    public static Archive mapOrCreate(Path lodPath) throws IOException {
+        return Files.exists(lodPath) ? map(lodPath) : createEmpty(lodPath);
+    }
+
     public static Archive parse(Path lodPath, ByteBuffer byteBuffer) throws IOException {
         LodType type = LodType.forPath(lodPath);
         switch (type) {
@@ -133,6 +218,9 @@ public class LodFile implements Archive {
             }
         }
         if (!byteBuffer.hasRemaining()) {
+            if (byteBuffer instanceof MappedByteBuffer mapped) {
+                Utils.unmap(mapped);
+            }
             return createEmpty(lodPath);
         }
         LodFile result = new LodFile();
@@ -146,21 +234,7 @@ public class LodFile implements Archive {
         result.fileUseFlag = byteBuffer.getInt();
         result.subFilesCount = byteBuffer.getInt();
         byteBuffer.get(result.junk);
-
-        result.subFiles = new ArrayList<>(result.subFilesCount);
-        for (int i = 0; i < result.subFilesCount; i++) {
-            SubFileMeta meta = new SubFileMeta();
-            meta.parent = result;
-
-            byteBuffer.get(meta.name);
-            meta.nameAsString = new String(meta.name, 0, indexOfZero(meta.name));
-            meta.globalOffsetInFile = byteBuffer.getInt();
-            meta.uncompressedSize = byteBuffer.getInt();
-            meta.fileType = byteBuffer.getInt();
-            meta.compressedSize = byteBuffer.getInt();
-
-            result.subFiles.add(meta);
-        }
+        result.subFilesOffset = byteBuffer.position();
 
         return result;
     }
@@ -1,7 +1,10 @@
 package com.github.artyomcool.lodinfra.h3common;
 
+import com.github.artyomcool.lodinfra.Utils;
+
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
@@ -12,6 +15,8 @@ public class MediaFile implements Archive {
     public final List<SubFileMeta> files;
     public final ByteBuffer originalData;
 
+    private NameIndex nameIndex;
+
     protected MediaFile(Path lodPath, ByteBuffer byteBuffer) {
         if (byteBuffer == null || !byteBuffer.hasRemaining()) {
             files = new ArrayList<>();
@@ -58,11 +63,50 @@ public class MediaFile implements Archive {
         return files;
     }
 
+    @Override
+    public Element find(String name) {
+        int index = nameIndex().indexOf(name);
+        if (index == -1) {
+            return null;
+        }
+        // names are up to 40 bytes and keyed by the first 16 only, so a name sharing that prefix may be found
+        SubFileMeta found = files.get(index);
+        if (!found.name.equalsIgnoreCase(name)) {
+            for (SubFileMeta file : files) {
+                if (file.name.equalsIgnoreCase(name)) {
+                    return file;
+                }
+            }
+            return null;
+        }
+        return found;
+    }
+
+    @Override
+    public NameIndex nameIndex() {
+        if (nameIndex == null) {
+            nameIndex = NameIndex.of(files);
+        }
+        return nameIndex;
+    }
+
+    @Override
+    public void reuseNameIndex(NameIndex index) {
+        nameIndex = index;
+    }
+
     @Override
     public void writeHeader(ByteBuffer byteBuffer, int subFilesCount) {
         byteBuffer.putInt(subFilesCount);
     }
 
+    @Override
+    public void close() {
+        if (originalData instanceof MappedByteBuffer mapped) {
+            Utils.unmap(mapped);
+        }
+    }
+
     public static class SubFileMeta implements Archive.Element {
         MediaFile parent;
         String name;    // 40 bytes
@@ -92,6 +136,11 @@ public class MediaFile implements Archive {
                     .order(ByteOrder.LITTLE_ENDIAN);
         }
 
+        @Override
+        public int offset() {
+            return offset;
+        }
+
         @Override
         public int fileType() {
             return 1;
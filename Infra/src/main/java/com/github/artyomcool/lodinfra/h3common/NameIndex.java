@@ -0,0 +1,111 @@
+package com.github.artyomcool.lodinfra.h3common;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Case-insensitive open addressing table from a resource name to its index in the archive.
+ * Names are keyed by their first 16 bytes (the whole name for LOD), packed into two longs.
+ */
+public class NameIndex {
+
+    public static final int KEY_SIZE = 16;
+
+    private final int mask;
+    private final int[] slots;  // index of entry + 1, 0 for empty slot
+    private final long[] keys;  // two longs per entry index
+
+    public NameIndex(int count) {
+        int capacity = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1;
+        this.mask = capacity - 1;
+        this.slots = new int[capacity];
+        this.keys = new long[count * 2];
+    }
+
+    public static NameIndex of(ByteBuffer buffer, int offset, int stride, int count) {
+        NameIndex index = new NameIndex(count);
+        for (int i = 0; i < count; i++) {
+            int nameOffset = offset + i * stride;
+            int length = nameLength(buffer, nameOffset);
+            index.put(i, key(buffer, nameOffset, 0, length), key(buffer, nameOffset, 8, length));
+        }
+        return index;
+    }
+
+    public static NameIndex of(List<? extends Archive.Element> elements) {
+        NameIndex index = new NameIndex(elements.size());
+        for (int i = 0; i < elements.size(); i++) {
+            String name = elements.get(i).name();
+            index.put(i, key(name, 0), key(name, 8));
+        }
+        return index;
+    }
+
+    /**
+     * @return index of the entry or -1; when stored names may be longer than {@link #KEY_SIZE},
+     * any entry with the same first {@link #KEY_SIZE} bytes may be returned and the caller has to verify it
+     */
+    public int indexOf(String name) {
+        long lo = key(name, 0);
+        long hi = key(name, 8);
+        for (int slot = hash(lo, hi) & mask; ; slot = (slot + 1) & mask) {
+            int entry = slots[slot] - 1;
+            if (entry == -1) {
+                return -1;
+            }
+            if (keys[entry * 2] == lo && keys[entry * 2 + 1] == hi) {
+                return entry;
+            }
+        }
+    }
+
+    private void put(int entry, long lo, long hi) {
+        keys[entry * 2] = lo;
+        keys[entry * 2 + 1] = hi;
+        for (int slot = hash(lo, hi) & mask; ; slot = (slot + 1) & mask) {
+            int existing = slots[slot] - 1;
+            if (existing == -1) {
+                slots[slot] = entry + 1;
+                return;
+            }
+            if (keys[existing * 2] == lo && keys[existing * 2 + 1] == hi) {
+                return;     // duplicated name, the first one wins as in linear scan
+            }
+        }
+    }
+
+    private static int hash(long lo, long hi) {
+        long h = lo * 0x9E3779B97F4A7C15L ^ hi * 0xC2B2AE3D27D4EB4FL;
+        h ^= h >>> 29;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int nameLength(ByteBuffer buffer, int offset) {
+        for (int i = 0; i < KEY_SIZE; i++) {
+            if (buffer.get(offset + i) == 0) {
+                return i;
+            }
+        }
+        return KEY_SIZE;
+    }
+
+    private static long key(ByteBuffer buffer, int offset, int from, int length) {
+        long result = 0;
+        for (int i = 0; i < 8 && from + i < length; i++) {
+            result |= (long) (lowerCase(buffer.get(offset + from + i)) & 0xff) << (i * 8);
+        }
+        return result;
+    }
+
+    private static long key(String name, int from) {
+        long result = 0;
+        for (int i = 0; i < 8 && from + i < name.length(); i++) {
+            result |= (long) (lowerCase((byte) name.charAt(from + i)) & 0xff) << (i * 8);
+        }
+        return result;
+    }
+
+    private static byte lowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b | 0x20) : b;
+    }
+}
@@ -1,7 +1,5 @@
 package com.github.artyomcool.lodinfra.h3common;
 
-import com.github.artyomcool.lodinfra.ui.ImgFilesUtils;
-
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
@@ -29,14 +27,11 @@ public class P32 extends Def {
         def.groups.add(group);
 
         IntBuffer pixels = IntBuffer.allocate(width * height);
-        buffer.position(imageOffset);
-        for (int yy = height - 1; yy >= 0; yy--) {
-            for (int xx = 0; xx < width; xx++) {
-                pixels.put(yy * width + xx, ImgFilesUtils.d32ToPcxColor(false, buffer.getInt()));
-            }
-        }
+        int[] pixArray = pixels.array();
+        readBottomUpRows(buffer, imageOffset, pixArray, width, 0, 0, width, height);
 
-        ImgFilesUtils.premultiply(pixels.array());
+        PixelKernels.d32ToPcxColors(pixArray, 0, pixArray.length, false);
+        PixelKernels.premultiply(pixArray, 0, pixArray.length);
 
         Frame frame = new Frame(group, def.fullWidth, def.fullHeight, pixels);
         frame.compression = 0;
@@ -70,7 +65,7 @@ public class P32 extends Def {
         buffer.position(imageOffset);
         for (int j = height - 1; j >= 0; j--) {
             for (int i = 0; i < width; i++) {
-                buffer.putInt(ImgFilesUtils.pcxToD32Color(frame.color(i, j)));
+                buffer.putInt(PixelKernels.pcxToD32Color(frame.color(i, j)));
             }
         }
 
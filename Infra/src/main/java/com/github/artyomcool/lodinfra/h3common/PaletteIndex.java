@@ -0,0 +1,56 @@
+package com.github.artyomcool.lodinfra.h3common;
+
+/**
+ * Primitive color to palette index lookup, open addressing over a table twice as big as the palette.
+ * If a color is repeated in the palette the last index wins.
+ */
+public final class PaletteIndex {
+
+    private final int[] colors;
+    private final short[] indexes;   // index + 1, 0 for empty slot
+    private final int mask;
+
+    public PaletteIndex(int[] palette) {
+        int size = Integer.highestOneBit(Math.max(palette.length, 1) * 2 - 1) << 1;
+        colors = new int[size];
+        indexes = new short[size];
+        mask = size - 1;
+
+        for (int i = 0; i < palette.length; i++) {
+            int slot = slot(palette[i]);
+            colors[slot] = palette[i];
+            indexes[slot] = (short) (i + 1);
+        }
+    }
+
+    /**
+     * @return index of the color in the palette or -1 if there is no such color
+     */
+    public int indexOf(int color) {
+        return indexes[slot(color)] - 1;
+    }
+
+    /**
+     * Same as {@link #indexOf(int)}, but fails on colors that are absent in the palette.
+     */
+    public int requireIndexOf(int color) {
+        int index = indexOf(color);
+        if (index < 0) {
+            throw new IllegalArgumentException("Color " + String.format("%08x", color) + " is not in the palette");
+        }
+        return index;
+    }
+
+    private int slot(int color) {
+        int slot = mix(color) & mask;
+        while (indexes[slot] != 0 && colors[slot] != color) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int mix(int color) {
+        int h = color * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,224 @@
+package com.github.artyomcool.lodinfra.h3common;
+
+import java.util.*;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Median cut over a color histogram. The box of colors with the widest channel range is split at its weighted median
+ * until there are enough boxes, then every color is replaced with the nearest weighted box average.
+ */
+public final class PaletteQuantizer {
+
+    private static final int[] SHIFTS = {24, 16, 8, 0};
+
+    private PaletteQuantizer() {
+    }
+
+    /**
+     * @param histogram  pixels count by color
+     * @param maxColors  how many colors may be left
+     * @param forbidden  colors that averages should not turn into, such as special colors
+     * @param progress   receives values from 0 to 1, called from the calling thread
+     */
+    public static Result quantize(Map<Integer, Integer> histogram, int maxColors, int[] forbidden, DoubleConsumer progress) {
+        if (histogram.size() <= maxColors) {
+            return new Result(new ArrayList<>(histogram.keySet()), Map.of());
+        }
+
+        int[] colors = new int[histogram.size()];
+        long[] weights = new long[colors.length];
+        int n = 0;
+        for (Map.Entry<Integer, Integer> entry : histogram.entrySet()) {
+            colors[n] = entry.getKey();
+            weights[n] = entry.getValue();
+            n++;
+        }
+
+        List<Box> boxes = new ArrayList<>(maxColors);
+        boxes.add(new Box(colors, 0, colors.length));
+        long[] keys = new long[colors.length];
+        while (boxes.size() < maxColors) {
+            Box widest = null;
+            for (Box box : boxes) {
+                if (box.to - box.from > 1 && (widest == null || box.range > widest.range)) {
+                    widest = box;
+                }
+            }
+            if (widest == null) {
+                break;
+            }
+            boxes.add(widest.split(colors, weights, keys));
+            progress.accept(0.5 * boxes.size() / maxColors);
+        }
+
+        Set<Integer> palette = new LinkedHashSet<>();
+        for (Box box : boxes) {
+            palette.add(box.average(colors, weights, forbidden));
+        }
+        // sorted by green, so the search can go both ways from the green of a color and stop early
+        int[] entries = palette.stream()
+                .sorted(Comparator.comparingInt(c -> c >>> 8 & 0xff))
+                .mapToInt(Integer::intValue)
+                .toArray();
+        int[] greens = Arrays.stream(entries).map(c -> c >>> 8 & 0xff).toArray();
+
+        Map<Integer, Integer> replacements = new HashMap<>();
+        for (int i = 0; i < colors.length; i++) {
+            int color = colors[i];
+            int nearest = nearest(entries, greens, color);
+            if (nearest != color) {
+                replacements.put(color, nearest);
+            }
+            if (i % 1024 == 0) {
+                progress.accept(0.5 + 0.5 * i / colors.length);
+            }
+        }
+        progress.accept(1);
+
+        return new Result(new ArrayList<>(palette), replacements);
+    }
+
+    private static int nearest(int[] palette, int[] greens, int color) {
+        int green = color >>> 8 & 0xff;
+        int start = Arrays.binarySearch(greens, green);
+        if (start < 0) {
+            start = Math.min(-start - 1, palette.length - 1);
+        }
+
+        int best = palette[start];
+        int bestDistance = distance(color, best);
+        for (int i = start - 1; i >= 0; i--) {
+            int dg = green - greens[i];
+            if (dg * dg >= bestDistance) {
+                break;
+            }
+            int distance = distance(color, palette[i]);
+            if (distance < bestDistance) {
+                best = palette[i];
+                bestDistance = distance;
+            }
+        }
+        for (int i = start + 1; i < palette.length; i++) {
+            int dg = greens[i] - green;
+            if (dg * dg >= bestDistance) {
+                break;
+            }
+            int distance = distance(color, palette[i]);
+            if (distance < bestDistance) {
+                best = palette[i];
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    private static int distance(int c1, int c2) {
+        int a = (c1 >>> 24) - (c2 >>> 24);
+        int r = (c1 >>> 16 & 0xff) - (c2 >>> 16 & 0xff);
+        int g = (c1 >>> 8 & 0xff) - (c2 >>> 8 & 0xff);
+        int b = (c1 & 0xff) - (c2 & 0xff);
+        return a * a + r * r + g * g + b * b;
+    }
+
+    /**
+     * @param palette       colors that are left
+     * @param replacements  new color by old one, only for colors that were changed
+     */
+    public record Result(List<Integer> palette, Map<Integer, Integer> replacements) {
+    }
+
+    /**
+     * Colors in [from, to) of the shared colors array.
+     */
+    private static class Box {
+        int from;
+        int to;
+        int channel;    // shift of the widest channel
+        int range;
+
+        Box(int[] colors, int from, int to) {
+            this.from = from;
+            this.to = to;
+            measure(colors);
+        }
+
+        private void measure(int[] colors) {
+            range = -1;
+            for (int shift : SHIFTS) {
+                int min = 255;
+                int max = 0;
+                for (int i = from; i < to; i++) {
+                    int c = colors[i] >>> shift & 0xff;
+                    min = Math.min(min, c);
+                    max = Math.max(max, c);
+                }
+                if (max - min > range) {
+                    range = max - min;
+                    channel = shift;
+                }
+            }
+        }
+
+        /**
+         * Sorts colors by the widest channel and leaves the lower half in this box.
+         *
+         * @return box with the upper half
+         */
+        Box split(int[] colors, long[] weights, long[] keys) {
+            for (int i = from; i < to; i++) {
+                keys[i] = (long) (colors[i] >>> channel & 0xff) << 32 | i;
+            }
+            Arrays.sort(keys, from, to);
+
+            int[] sortedColors = new int[to - from];
+            long[] sortedWeights = new long[to - from];
+            long total = 0;
+            for (int i = from; i < to; i++) {
+                int index = (int) keys[i];
+                sortedColors[i - from] = colors[index];
+                sortedWeights[i - from] = weights[index];
+                total += weights[index];
+            }
+            System.arraycopy(sortedColors, 0, colors, from, sortedColors.length);
+            System.arraycopy(sortedWeights, 0, weights, from, sortedWeights.length);
+
+            int median = from + 1;
+            long sum = weights[from];
+            while (median < to - 1 && sum * 2 < total) {
+                sum += weights[median++];
+            }
+
+            Box upper = new Box(colors, median, to);
+            to = median;
+            measure(colors);
+            return upper;
+        }
+
+        int average(int[] colors, long[] weights, int[] forbidden) {
+            if (to - from == 1) {
+                return colors[from];
+            }
+
+            long total = 0;
+            long[] sums = new long[SHIFTS.length];
+            for (int i = from; i < to; i++) {
+                total += weights[i];
+                for (int c = 0; c < SHIFTS.length; c++) {
+                    sums[c] += (colors[i] >>> SHIFTS[c] & 0xff) * weights[i];
+                }
+            }
+
+            int average = 0;
+            for (int c = 0; c < SHIFTS.length; c++) {
+                average |= (int) ((sums[c] + total / 2) / total) << SHIFTS[c];
+            }
+            for (int color : forbidden) {
+                if (color == average) {
+                    average ^= 0x0100;
+                    break;
+                }
+            }
+            return average;
+        }
+    }
+}
@@ -5,8 +5,6 @@ import com.github.artyomcool.lodinfra.ui.ImgFilesUtils;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
-import java.util.HashMap;
-import java.util.Map;
 
 public class Pcx extends DefInfo {
 
@@ -25,15 +23,14 @@ public class Pcx extends DefInfo {
     }
 
     public static DefInfo load24(ByteBuffer buffer, int width, int height) {
-        IntBuffer pixels = IntBuffer.allocate(width * height);
+        byte[] bgr = new byte[width * height * 3];
         buffer.position(buffer.position() + 12);
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int b = buffer.get() & 0xff;
-                int g = buffer.get() & 0xff;
-                int r = buffer.get() & 0xff;
-                pixels.put(0xff000000 | r << 16 | g << 8 | b);
-            }
+        buffer.get(bgr);
+
+        IntBuffer pixels = IntBuffer.allocate(width * height);
+        int[] pixArray = pixels.array();
+        for (int i = 0, j = 0; i < pixArray.length; i++, j += 3) {
+            pixArray[i] = 0xff000000 | (bgr[j + 2] & 0xff) << 16 | (bgr[j + 1] & 0xff) << 8 | (bgr[j] & 0xff);
         }
         DefInfo info = new DefInfo();
         info.type = TYPE24;
@@ -43,20 +40,16 @@ public class Pcx extends DefInfo {
         Group group = new Group(info);
         info.groups.add(group);
 
-        Frame frame = new Frame(group, width, height, pixels.flip());
+        Frame frame = new Frame(group, width, height, pixels);
         group.frames.add(frame);
 
         return info;
     }
 
     public static DefInfo load8(ByteBuffer buffer, int width, int height) {
-        IntBuffer pixels = IntBuffer.allocate(width * height);
+        byte[] indexes = new byte[width * height];
         buffer.position(buffer.position() + 12);
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                pixels.put(buffer.get() & 0xff);
-            }
-        }
+        buffer.get(indexes);
 
         int[] palette = new int[256];
         for (int i = 0; i < palette.length; i++) {
@@ -66,11 +59,6 @@ public class Pcx extends DefInfo {
             palette[i] = 0xff000000 | r << 16 | g << 8 | b;
         }
 
-        int[] array = pixels.array();
-        for (int i = 0; i < array.length; i++) {
-            array[i] = palette[array[i]];
-        }
-
         DefInfo info = new DefInfo();
         info.type = TYPE8;
         info.fullWidth = width;
@@ -80,7 +68,7 @@ public class Pcx extends DefInfo {
         Group group = new Group(info);
         info.groups.add(group);
 
-        group.frames.add(new Frame(group, width, height, pixels.flip()));
+        group.frames.add(new Frame(group, width, height, indexes, palette));
 
         return info;
     }
@@ -89,32 +77,29 @@ public class Pcx extends DefInfo {
         int[] palette = frame.group.def.palette;
         if (palette != null) {
             int size = frame.fullWidth * frame.fullHeight;
-            ByteBuffer buffer = ByteBuffer.allocate(12 + 256 + size)
+            ByteBuffer buffer = ByteBuffer.allocate(12 + size + palette.length * 3)
                     .order(ByteOrder.LITTLE_ENDIAN);
             buffer
                     .putInt(size)
                     .putInt(frame.fullWidth)
                     .putInt(frame.fullHeight);
 
-            Map<Integer, Byte> paletteIndex = new HashMap<>();
-            for (int i = 0; i < palette.length; i++) {
-                int c = palette[i];
-                int r = (c >> 16) & 0xff;
-                int g = (c >> 8) & 0xff;
-                int b = c & 0xff;
-
-                buffer
-                        .put((byte) r)
-                        .put((byte) g)
-                        .put((byte) b);
-
-                paletteIndex.put(c, (byte)i);
+            if (frame.indexes() != null && frame.indexedPalette() == palette) {
+                buffer.put(frame.indexes());
+            } else {
+                PaletteIndex paletteIndex = new PaletteIndex(palette);
+                for (int y = 0; y < frame.fullHeight; y++) {
+                    for (int x = 0; x < frame.fullWidth; x++) {
+                        buffer.put((byte) paletteIndex.requireIndexOf(frame.color(x, y)));
+                    }
+                }
             }
 
-            for (int y = 0; y < frame.fullHeight; y ++) {
-                for (int x = 0; x < frame.fullWidth; x++) {
-                    buffer.put(paletteIndex.get(frame.color(x, y)));
-                }
+            for (int c : palette) {
+                buffer
+                        .put((byte) (c >> 16))
+                        .put((byte) (c >> 8))
+                        .put((byte) c);
             }
             return buffer.flip();
         } else {
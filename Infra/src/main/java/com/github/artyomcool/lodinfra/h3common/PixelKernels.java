@@ -0,0 +1,274 @@
+package com.github.artyomcool.lodinfra.h3common;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Per-pixel transforms of ARGB frames. Divisions are replaced with lookup tables and special color switches
+ * with a perfect hash, so results are exactly the same as the straightforward formulas.
+ * Loops over arrays run on {@link VectorKernels} where jdk.incubator.vector is available, with the same results.
+ */
+public final class PixelKernels {
+
+    static final boolean VECTORIZED = !Boolean.getBoolean("lodinfra.scalarKernels") && vectorSupported();
+
+    // channel * alpha table, PREMULTIPLIED[a << 8 | c] = round(c * a / 255), identity for opaque pixels
+    private static final byte[] PREMULTIPLIED = new byte[256 * 256];
+    // channel / alpha table, UNMULTIPLIED[a << 8 | c] = round(c * 255 / a), saturated, identity for a = 0 and 255
+    private static final byte[] UNMULTIPLIED = new byte[256 * 256];
+
+    static {
+        for (int a = 0; a < 256; a++) {
+            for (int c = 0; c < 256; c++) {
+                PREMULTIPLIED[a << 8 | c] = (byte) ((c * a + 127) / 0xff);
+                UNMULTIPLIED[a << 8 | c] = (byte) (a == 0 ? c : c >= a ? 0xff : (c * 0xff + (a >> 1)) / a);
+            }
+        }
+    }
+
+    private static final SpecialColors D32_TO_PCX = new SpecialColors(
+            new int[]{0x00000000, 0x00FF0002, 0x00FF0001, 0x00FF0003, 0x00FF0004, 0x00FF0010, 0x00FF0014, 0x00FF0012},
+            new int[]{0xFF00FFFF, 0xFFFF96FF, 0xFFFF64FF, 0xFFFF32FF, 0xFFFF00FF, 0xFFFFFF00, 0xFFB400FF, 0xFF00FF00}
+    );
+    private static final SpecialColors PCX_TO_D32 = new SpecialColors(D32_TO_PCX.values, D32_TO_PCX.keys);
+
+    private PixelKernels() {
+    }
+
+    private static boolean vectorSupported() {
+        try {
+            return VectorKernels.isSupported();
+        } catch (LinkageError e) {
+            // the module is optional and resolved only with --add-modules jdk.incubator.vector
+            return false;
+        }
+    }
+
+    public static int premultiply(int nonpre) {
+        int a = nonpre >>> 24;
+        int table = a << 8;
+        int r = PREMULTIPLIED[table | (nonpre >> 16) & 0xff] & 0xff;
+        int g = PREMULTIPLIED[table | (nonpre >> 8) & 0xff] & 0xff;
+        int b = PREMULTIPLIED[table | nonpre & 0xff] & 0xff;
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    public static int unmultiply(int pre) {
+        int a = pre >>> 24;
+        int table = a << 8;
+        int r = UNMULTIPLIED[table | (pre >> 16) & 0xff] & 0xff;
+        int g = UNMULTIPLIED[table | (pre >> 8) & 0xff] & 0xff;
+        int b = UNMULTIPLIED[table | pre & 0xff] & 0xff;
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    public static void premultiply(int[] pixels, int from, int to) {
+        int i = VECTORIZED ? VectorKernels.premultiply(pixels, from, to) : from;
+        for (; i < to; i++) {
+            pixels[i] = premultiply(pixels[i]);
+        }
+    }
+
+    public static void unmultiply(int[] pixels, int from, int to) {
+        int i = VECTORIZED ? VectorKernels.unmultiply(pixels, from, to) : from;
+        for (; i < to; i++) {
+            pixels[i] = unmultiply(pixels[i]);
+        }
+    }
+
+    public static int d32ToPcxColor(boolean cleanPixels, int pixel) {
+        // all special D32 colors are fully transparent
+        if (pixel >>> 24 != 0) {
+            return pixel;
+        }
+        int special = D32_TO_PCX.slot(pixel);
+        if (special >= 0) {
+            return D32_TO_PCX.values[special];
+        }
+        return cleanPixels ? 0x00000000 : pixel;
+    }
+
+    public static void d32ToPcxColors(int[] pixels, int from, int to, boolean cleanPixels) {
+        int i = VECTORIZED
+                ? VectorKernels.replaceTransparent(pixels, from, to, D32_TO_PCX.keys, D32_TO_PCX.values, cleanPixels)
+                : from;
+        for (; i < to; i++) {
+            int c = pixels[i];
+            if (c >>> 24 == 0) {
+                pixels[i] = d32ToPcxColor(cleanPixels, c);
+            }
+        }
+    }
+
+    public static int pcxToD32Color(int pixel) {
+        int special = PCX_TO_D32.slot(pixel);
+        return special >= 0 ? PCX_TO_D32.values[special] : pixel;
+    }
+
+    /**
+     * Largest difference between channels, same as square root of the largest squared difference.
+     */
+    public static int colorDifference(int c1, int c2) {
+        if (c1 == c2) {
+            return 0;
+        }
+        int a = Math.abs((c1 >>> 24) - (c2 >>> 24));
+        int r = Math.abs(((c1 >>> 16) & 0xff) - ((c2 >>> 16) & 0xff));
+        int g = Math.abs(((c1 >>> 8) & 0xff) - ((c2 >>> 8) & 0xff));
+        int b = Math.abs((c1 & 0xff) - (c2 & 0xff));
+        return Math.max(Math.max(a, r), Math.max(g, b));
+    }
+
+    public static void colorDifference(int[] one, int[] two, int[] result, int length) {
+        int i = VECTORIZED ? VectorKernels.colorDifference(one, two, result, 0, length) : 0;
+        for (; i < length; i++) {
+            result[i] = colorDifference(one[i], two[i]);
+        }
+    }
+
+    /**
+     * @return true if any of the remaining pixels is one of the colors
+     */
+    public static boolean containsAny(IntBuffer pixels, int[] colors) {
+        SpecialColors lookup = new SpecialColors(colors, colors);
+        int i = pixels.position();
+        if (VECTORIZED && pixels.hasArray()) {
+            int offset = pixels.arrayOffset();
+            i = VectorKernels.indexOfAny(pixels.array(), offset + i, offset + pixels.limit(), colors) - offset;
+        }
+        for (; i < pixels.limit(); i++) {
+            if (lookup.slot(pixels.get(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Bounds of pixels that differ from the background, rows are scanned from top and bottom till the first
+     * such pixel, the rest rows only from the sides till the bounds found so far.
+     *
+     * @return {left, top, right, bottom} inclusive, or null if all pixels are the background
+     */
+    public static int[] bounds(int w, int h, IntBuffer pixels, int background) {
+        int start = pixels.position();
+
+        int top = 0;
+        int left = w;
+        int right = -1;
+        while (top < h) {
+            int row = start + top * w;
+            int other = indexOfOther(pixels, row, row + w, background);
+            if (other >= 0) {
+                left = other - row;
+                break;
+            }
+            top++;
+        }
+        if (top == h) {
+            return null;
+        }
+
+        int bottom = h - 1;
+        while (bottom > top) {
+            if (!isBackground(pixels, start + bottom * w, w, background)) {
+                break;
+            }
+            bottom--;
+        }
+
+        for (int y = top; y <= bottom; y++) {
+            int row = start + y * w;
+            int other = indexOfOther(pixels, row, row + left, background);
+            if (other >= 0) {
+                left = other - row;
+            }
+            for (int x = w - 1; x > right; x--) {
+                if (pixels.get(row + x) != background) {
+                    right = x;
+                    break;
+                }
+            }
+        }
+
+        return new int[]{left, top, right, bottom};
+    }
+
+    private static boolean isBackground(IntBuffer pixels, int from, int length, int background) {
+        return indexOfOther(pixels, from, from + length, background) < 0;
+    }
+
+    /**
+     * @return index of the first pixel in the range other than the background, -1 if there are none
+     */
+    private static int indexOfOther(IntBuffer pixels, int from, int to, int background) {
+        int i = from;
+        if (VECTORIZED && pixels.hasArray()) {
+            int offset = pixels.arrayOffset();
+            i = VectorKernels.indexOfOther(pixels.array(), offset + i, offset + to, background) - offset;
+        }
+        for (; i < to; i++) {
+            if (pixels.get(i) != background) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Perfect hash of a few colors to their indexes, a miss costs a multiplication and a comparison or two.
+     */
+    private static class SpecialColors {
+        final int[] keys;
+        final int[] values;
+
+        private final int[] slotKeys;
+        private final int[] slotIndexes;    // -1 for empty slots
+        private final int multiplier;
+        private final int shift;
+
+        SpecialColors(int[] keys, int[] values) {
+            this.keys = keys;
+            this.values = values;
+
+            int bits = 32 - Integer.numberOfLeadingZeros(Math.max(keys.length, 1) * 2 - 1) + 1;
+            int shift = 32 - bits;
+            int multiplier = 0x9e3779b9;
+            int[] slots;
+            while ((slots = tryMultiplier(keys, multiplier, shift)) == null) {
+                multiplier += 2;
+            }
+            this.multiplier = multiplier;
+            this.shift = shift;
+            this.slotIndexes = slots;
+
+            slotKeys = new int[slots.length];
+            for (int i = 0; i < slots.length; i++) {
+                slotKeys[i] = slots[i] >= 0 ? keys[slots[i]] : 0;
+            }
+        }
+
+        /**
+         * @return index of the first equal key or -1 if the color is not a key
+         */
+        int slot(int color) {
+            int slot = (color * multiplier) >>> shift;
+            int index = slotIndexes[slot];
+            return index >= 0 && slotKeys[slot] == color ? index : -1;
+        }
+
+        private static int[] tryMultiplier(int[] keys, int multiplier, int shift) {
+            int[] slots = new int[1 << (32 - shift)];
+            Arrays.fill(slots, -1);
+            for (int i = 0; i < keys.length; i++) {
+                int slot = (keys[i] * multiplier) >>> shift;
+                if (slots[slot] == -1) {
+                    slots[slot] = i;
+                } else if (keys[slots[slot]] != keys[i]) {
+                    return null;
+                }
+            }
+            return slots;
+        }
+    }
+}
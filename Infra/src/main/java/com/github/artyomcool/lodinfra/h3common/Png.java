@@ -2,7 +2,6 @@ package com.github.artyomcool.lodinfra.h3common;
 
 import ar.com.hjg.pngj.*;
 import ar.com.hjg.pngj.chunks.PngChunkPLTE;
-import com.github.artyomcool.lodinfra.ui.ImgFilesUtils;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -49,7 +48,7 @@ public class Png extends DefInfo {
             }
         }
 
-        ImgFilesUtils.premultiply(pixels.array());
+        PixelKernels.premultiply(pixels.array(), 0, pixels.capacity());
 
         Group group = new Group(def);
         Frame frame = new Frame(group, def.fullWidth, def.fullHeight, pixels.flip());
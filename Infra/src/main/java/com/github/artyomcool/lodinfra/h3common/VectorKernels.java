@@ -0,0 +1,137 @@
+package com.github.artyomcool.lodinfra.h3common;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector variants of {@link PixelKernels} loops. Every method handles whole vectors from the start of the range
+ * and returns where it stopped, the rest of the range is left for the scalar loop.
+ */
+final class VectorKernels {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    private VectorKernels() {
+    }
+
+    /**
+     * @return false if vectors are too short to be faster than the scalar loops
+     */
+    static boolean isSupported() {
+        return SPECIES.length() >= 4;
+    }
+
+    static int premultiply(int[] pixels, int from, int to) {
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            IntVector v = IntVector.fromArray(SPECIES, pixels, i);
+            IntVector a = v.lanewise(VectorOperators.LSHR, 24);
+            IntVector r = premultiply(v.lanewise(VectorOperators.LSHR, 16).and(0xff), a);
+            IntVector g = premultiply(v.lanewise(VectorOperators.LSHR, 8).and(0xff), a);
+            IntVector b = premultiply(v.and(0xff), a);
+            pack(a, r, g, b).intoArray(pixels, i);
+        }
+        return i;
+    }
+
+    /**
+     * Division has no fast vector form, but frames are mostly fully opaque or fully transparent and such pixels
+     * are kept as is, so only vectors with other pixels are unmultiplied, and pixel by pixel.
+     */
+    static int unmultiply(int[] pixels, int from, int to) {
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            IntVector a = IntVector.fromArray(SPECIES, pixels, i).lanewise(VectorOperators.LSHR, 24);
+            // alpha from 1 to 254
+            if (a.sub(1).compare(VectorOperators.UNSIGNED_LT, 0xfe).anyTrue()) {
+                for (int j = i; j < i + SPECIES.length(); j++) {
+                    pixels[j] = PixelKernels.unmultiply(pixels[j]);
+                }
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Replaces fully transparent pixels, keys are expected to be fully transparent colors.
+     */
+    static int replaceTransparent(int[] pixels, int from, int to, int[] keys, int[] values, boolean cleanPixels) {
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            IntVector v = IntVector.fromArray(SPECIES, pixels, i);
+            VectorMask<Integer> transparent = v.compare(VectorOperators.UNSIGNED_LT, 0x01000000);
+            if (!transparent.anyTrue()) {
+                continue;
+            }
+            IntVector result = cleanPixels ? v.blend(0, transparent) : v;
+            // backwards, so the first equal key wins as in the scalar lookup
+            for (int k = keys.length - 1; k >= 0; k--) {
+                result = result.blend(values[k], v.compare(VectorOperators.EQ, keys[k]));
+            }
+            result.intoArray(pixels, i);
+        }
+        return i;
+    }
+
+    static int colorDifference(int[] one, int[] two, int[] result, int from, int to) {
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            IntVector c1 = IntVector.fromArray(SPECIES, one, i);
+            IntVector c2 = IntVector.fromArray(SPECIES, two, i);
+            IntVector a = c1.lanewise(VectorOperators.LSHR, 24).sub(c2.lanewise(VectorOperators.LSHR, 24)).abs();
+            IntVector r = channel(c1, 16).sub(channel(c2, 16)).abs();
+            IntVector g = channel(c1, 8).sub(channel(c2, 8)).abs();
+            IntVector b = c1.and(0xff).sub(c2.and(0xff)).abs();
+            a.max(r).max(g.max(b)).intoArray(result, i);
+        }
+        return i;
+    }
+
+    /**
+     * @return start of the first vector that has one of the colors, or where the loop stopped
+     */
+    static int indexOfAny(int[] pixels, int from, int to, int[] colors) {
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            IntVector v = IntVector.fromArray(SPECIES, pixels, i);
+            for (int color : colors) {
+                if (v.compare(VectorOperators.EQ, color).anyTrue()) {
+                    return i;
+                }
+            }
+        }
+        return i;
+    }
+
+    /**
+     * @return start of the first vector that has a color other than the background, or where the loop stopped
+     */
+    static int indexOfOther(int[] pixels, int from, int to, int background) {
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            if (IntVector.fromArray(SPECIES, pixels, i).compare(VectorOperators.NE, background).anyTrue()) {
+                return i;
+            }
+        }
+        return i;
+    }
+
+    // (c * a + 127) / 255 without division, exact while c * a + 127 < 65535
+    private static IntVector premultiply(IntVector c, IntVector a) {
+        IntVector x = c.mul(a).add(127);
+        return x.add(x.lanewise(VectorOperators.LSHR, 8)).add(1).lanewise(VectorOperators.LSHR, 8);
+    }
+
+    private static IntVector channel(IntVector v, int shift) {
+        return v.lanewise(VectorOperators.LSHR, shift).and(0xff);
+    }
+
+    private static IntVector pack(IntVector a, IntVector r, IntVector g, IntVector b) {
+        return a.lanewise(VectorOperators.LSHL, 24)
+                .or(r.lanewise(VectorOperators.LSHL, 16))
+                .or(g.lanewise(VectorOperators.LSHL, 8))
+                .or(b);
+    }
+}
@@ -189,7 +189,7 @@ public class DefCompareView extends VBox {
         String fileName = file.getFileName().toString().toLowerCase();
         for (String ext : Arrays.asList("png", "bmp", "def", "p32", "d32", "pcx")) {
             if (fileName.endsWith("." + ext)) {
-                return DefInfo.load(file);
+                return DefInfo.load(file, true);
             }
         }
         return null;
@@ -1,5 +1,6 @@
 package com.github.artyomcool.lodinfra.ui;
 
+import com.github.artyomcool.lodinfra.ContentHash;
 import com.github.artyomcool.lodinfra.Pack;
 import com.github.artyomcool.lodinfra.Resource;
 import com.github.artyomcool.lodinfra.Utils;
@@ -49,8 +50,12 @@ import java.nio.file.StandardOpenOption;
 import java.time.LocalDate;
 import java.time.LocalTime;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -67,7 +72,15 @@ public class DefEditor extends StackPane {
         thread.setUncaughtExceptionHandler((thread1, throwable) -> throwable.printStackTrace());
         return thread;
     });
+    private static final Executor PALETTE_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "DefEditor palette thread");
+        thread.setDaemon(true);
+        thread.setUncaughtExceptionHandler((thread1, throwable) -> throwable.printStackTrace());
+        return thread;
+    });
     private static final int NO_HIGHLIGHT = 0x00ffffff;
+    // first history files started straight with the length of SHA-256 hex of a frame, so negative value marks a version
+    private static final int HISTORY_V2 = -2;
     private final Path restore;
     private final int time;
     private Path currentRestore;
@@ -456,27 +469,31 @@ public class DefEditor extends StackPane {
                 try (SeekableByteChannel backup = Files.newByteChannel(fileTmp, StandardOpenOption.WRITE)) {
                     ByteBuffer buffer = ByteBuffer.allocateDirect(10 * 1024 * 1024);
 
-                    Set<String> hash = new HashSet<>();
+                    Map<ContentHash, DefInfo.Frame> distinct = new LinkedHashMap<>();
                     for (HistoryItem item : items) {
                         for (DefInfo.Group group : item.def.groups) {
                             for (DefInfo.Frame frame : group.frames) {
-                                if (hash.add(frame.pixelsSha)) {
-                                    putString(buffer, frame.pixelsSha);
-                                    backup.write(buffer.flip());
-                                    buffer.clear();
-
-                                    IntBuffer intBuf = buffer.asIntBuffer();
-                                    intBuf.put(frame.pixels.remaining());
-                                    intBuf.put(frame.pixels.asReadOnlyBuffer());
-                                    buffer.position(buffer.position() + intBuf.position() * 4);
-                                    backup.write(buffer.flip());
-                                    buffer.clear();
-                                }
+                                distinct.putIfAbsent(frame.pixelsHash(), frame);
                             }
                         }
                     }
 
-                    putString(buffer, "");
+                    buffer.putInt(HISTORY_V2);
+                    buffer.putInt(distinct.size());
+                    for (Map.Entry<ContentHash, DefInfo.Frame> entry : distinct.entrySet()) {
+                        putHash(buffer, entry.getKey());
+                        backup.write(buffer.flip());
+                        buffer.clear();
+
+                        IntBuffer pixels = entry.getValue().pixels();
+                        IntBuffer intBuf = buffer.asIntBuffer();
+                        intBuf.put(pixels.remaining());
+                        intBuf.put(pixels.asReadOnlyBuffer());
+                        buffer.position(buffer.position() + intBuf.position() * 4);
+                        backup.write(buffer.flip());
+                        buffer.clear();
+                    }
+
                     buffer.putInt(items.size());
                     for (HistoryItem item : items) {
                         putString(buffer, item.def.path.toString());
@@ -501,7 +518,7 @@ public class DefEditor extends StackPane {
                                 putString(buffer, frame.name);
                                 buffer.putInt(frame.compression);
                                 buffer.putInt(frame.frameDrawType);
-                                putString(buffer, frame.pixelsSha);
+                                putHash(buffer, frame.pixelsHash());
                             }
                         }
                     }
@@ -524,20 +541,25 @@ public class DefEditor extends StackPane {
     }
 
     public void loadHistory(Path history) throws IOException {
-        Map<String, IntBuffer> frames = new HashMap<>();
+        // frames are keyed by SHA-256 hex in the first version and by ContentHash since the second one
+        Map<Object, IntBuffer> frames = new HashMap<>();
         ByteBuffer read = ByteBuffer.wrap(Files.readAllBytes(history));
-        while (true) {
-            String data = getString(read);
-            if (data == null || data.isEmpty()) {
-                break;
+        boolean v2 = read.getInt(0) == HISTORY_V2;
+        if (v2) {
+            read.getInt();
+            int framesCount = read.getInt();
+            for (int i = 0; i < framesCount; i++) {
+                ContentHash hash = getHash(read);
+                frames.put(hash, getPixels(read));
+            }
+        } else {
+            while (true) {
+                String data = getString(read);
+                if (data == null || data.isEmpty()) {
+                    break;
+                }
+                frames.put(data, getPixels(read));
             }
-
-            int size = read.getInt();
-            IntBuffer buffer = IntBuffer.allocate(size);
-            buffer.put(0, read.asIntBuffer(), 0, size);
-            read.position(read.position() + size * 4);
-
-            frames.put(data, buffer);
         }
 
         int itemsCount = read.getInt();
@@ -569,8 +591,13 @@ public class DefEditor extends StackPane {
                     String name = getString(read);
                     int compression = read.getInt();
                     int frameDrawType = read.getInt();
-                    String sha = getString(read);
-                    DefInfo.Frame frame = new DefInfo.Frame(group, fw, fh, frames.get(sha), sha);
+                    DefInfo.Frame frame;
+                    if (v2) {
+                        ContentHash hash = getHash(read);
+                        frame = new DefInfo.Frame(group, fw, fh, frames.get(hash), hash);
+                    } else {
+                        frame = new DefInfo.Frame(group, fw, fh, frames.get(getString(read)));
+                    }
                     frame.name = name;
                     frame.compression = compression;
                     frame.frameDrawType = frameDrawType;
@@ -589,6 +616,23 @@ public class DefEditor extends StackPane {
         setDefInternal(def, def.first());
     }
 
+    private static IntBuffer getPixels(ByteBuffer read) {
+        int size = read.getInt();
+        IntBuffer buffer = IntBuffer.allocate(size);
+        buffer.put(0, read.asIntBuffer(), 0, size);
+        read.position(read.position() + size * 4);
+        return buffer;
+    }
+
+    private static void putHash(ByteBuffer buffer, ContentHash hash) {
+        buffer.putLong(hash.lo());
+        buffer.putLong(hash.hi());
+    }
+
+    private static ContentHash getHash(ByteBuffer buffer) {
+        return new ContentHash(buffer.getLong(), buffer.getLong());
+    }
+
     private static void putString(ByteBuffer buffer, String data) {
         byte[] bytes = data == null ? null : data.getBytes(StandardCharsets.UTF_8);
         buffer.putInt(bytes == null ? -1 : bytes.length);
@@ -637,32 +681,26 @@ public class DefEditor extends StackPane {
 
     private void calculatePalette() {
         DefInfo def = currentDef();
-        Set<Integer> colors = new HashSet<>();
-        for (DefInfo.Group group : def.groups) {
-            for (DefInfo.Frame frame : group.frames) {
-                IntBuffer pixels = frame.pixels.duplicate();
-                while (pixels.hasRemaining()) {
-                    colors.add(pixels.get());
-                }
-            }
-        }
-
         int specialColors = switch (DefInfo.compressionForType(def, defType.getValue().type)) {
             case 0 -> 0;
             case 1 -> 8;
             case 2, 3 -> 6;
             default -> throw showError("Unexpected value for: " + defType.getValue());
         };
+        int reserved = defType.getValue().type == DefType.DefCombatCreature.type ? 10 : specialColors;
 
-        for (int i = 0; i < specialColors; i++) {
-            int specColor = DefInfo.SPEC_COLORS[i];
-            colors.remove(specColor);
-        }
+        runWithProgress("Palette calculation", progress -> histogram(def, specialColors, progress), histogram -> {
+            if (currentDef() != def) {
+                return;
+            }
 
-        int reserved = defType.getValue().type == DefType.DefCombatCreature.type ? 10 : specialColors;
+            int colorsCount = histogram.size() + reserved;
+            if (colorsCount <= 256) {
+                int[] palette = toPalette(histogram.keySet(), specialColors, reserved);
+                update("Palette", palette, Function.identity());
+                return;
+            }
 
-        int colorsCount = colors.size() + reserved;
-        if (colorsCount > 256) {
             System.err.println("Wrong colors count: " + colorsCount);
             ButtonType compact = new ButtonType("Compact", ButtonBar.ButtonData.APPLY);
             Alert alert = new Alert(Alert.AlertType.WARNING, "Palette to large: " + colorsCount, compact, ButtonType.CANCEL);
@@ -670,75 +708,144 @@ public class DefEditor extends StackPane {
                 return;
             }
 
-            Map<Integer, Integer> colorReplacements = new HashMap<>();
-            while (colors.size() + reserved > 256) {
-                ArrayList<Integer> cc = new ArrayList<>(colors);
-                reducePaletteForOne(cc, colorReplacements);
-                colors = new HashSet<>(cc);
-            }
+            Object selected = groupsAndFrames.getSelectionModel().getSelectedItem().getValue();
+            DefInfo clone = def.cloneBase();
+            runWithProgress("Palette compaction", progress -> {
+                PaletteQuantizer.Result result = PaletteQuantizer.quantize(
+                        histogram,
+                        256 - reserved,
+                        DefInfo.SPEC_COLORS,
+                        progress
+                );
+                DefInfo.Frame selectedFrame = replaceColors(def, clone, result.replacements(), selected);
+                clone.palette = toPalette(new HashSet<>(result.palette()), specialColors, reserved);
+                return selectedFrame;
+            }, selectedFrame -> {
+                if (currentDef() != def) {
+                    return;
+                }
+                setDefInternal(clone, selectedFrame);
+                drawPalette(clone);
+                autoscroll();
+                react = false;
+                putHistory(clone, "Palette compaction");
+                react = true;
+            });
+        });
+    }
 
-            List<Map.Entry<Integer, Integer>> replacements = new ArrayList<>(colorReplacements.entrySet());
-            Map<Integer, Map.Entry<Integer, Integer>> replacementsMap = new HashMap<>();
-            for (Map.Entry<Integer, Integer> replacement : replacements) {
-                replacementsMap.put(replacement.getKey(), replacement);
+    /**
+     * @return count of pixels by color, without the special colors
+     */
+    private static Map<Integer, Integer> histogram(DefInfo def, int specialColors, DoubleConsumer progress) {
+        int framesCount = 0;
+        for (DefInfo.Group group : def.groups) {
+            framesCount += group.frames.size();
+        }
+
+        Map<Integer, Integer> histogram = new HashMap<>();
+        int done = 0;
+        for (DefInfo.Group group : def.groups) {
+            for (DefInfo.Frame frame : group.frames) {
+                progress.accept((double) done++ / framesCount);
+                IntBuffer pixels = frame.pixels().duplicate();
+                while (pixels.hasRemaining()) {
+                    histogram.merge(pixels.get(), 1, Integer::sum);
+                }
             }
+        }
 
-            for (Map.Entry<Integer, Integer> replacement : replacements) {
-                Integer to = replacement.getValue();
+        for (int i = 0; i < specialColors; i++) {
+            int specColor = DefInfo.SPEC_COLORS[i];
+            histogram.remove(specColor);
+        }
+        return histogram;
+    }
 
-                Map.Entry<Integer, Integer> rep = replacementsMap.get(to);
-                while (rep != null) {
-                    to = rep.getValue();
-                    replacement.setValue(to);
-                    rep = replacementsMap.get(to);
-                }
+    /**
+     * Runs the work on the palette thread while a progress dialog is shown, closing the dialog cancels the work:
+     * the next progress report throws {@link CancellationException}. Failures are shown to the user.
+     *
+     * @param onDone called from the FX thread if the work is not cancelled
+     */
+    private static <T> void runWithProgress(String title, Function<DoubleConsumer, T> work, Consumer<T> onDone) {
+        ProgressBar progressBar = new ProgressBar(0);
+        progressBar.setPrefWidth(300);
+        Alert progress = new Alert(Alert.AlertType.NONE, "", ButtonType.CANCEL);
+        progress.setTitle(title);
+        progress.getDialogPane().setContent(progressBar);
+        AtomicBoolean cancelled = new AtomicBoolean();
+        progress.setOnHidden(e -> cancelled.set(true));
+        progress.show();
+
+        PALETTE_EXECUTOR.execute(() -> {
+            T result;
+            try {
+                result = work.apply(p -> {
+                    if (cancelled.get()) {
+                        throw new CancellationException();
+                    }
+                    Platform.runLater(() -> progressBar.setProgress(p));
+                });
+            } catch (CancellationException e) {
+                return;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                Platform.runLater(() -> {
+                    progress.close();
+                    showError(title + " failed: " + e);
+                });
+                return;
             }
 
-            DefInfo clone = def.cloneBase();
-            Object value = groupsAndFrames.getSelectionModel().getSelectedItem().getValue();
-            DefInfo.Frame selectedFrame = null;
-            for (DefInfo.Group group : def.groups) {
-                DefInfo.Group groupClone = group.cloneBase(clone);
-                for (DefInfo.Frame frame : group.frames) {
-                    IntBuffer from = frame.pixels.duplicate();
-                    IntBuffer to = null;
-                    while (from.hasRemaining()) {
-                        int c = from.get();
-                        Integer replace = colorReplacements.get(c);
-                        if (replace != null) {
-                            if (to == null) {
-                                to = IntBuffer.allocate(frame.pixels.remaining());
-                                to.put(frame.pixels.duplicate());
-                                to.position(from.position() - 1);
-                            }
-                            to.put(replace);
-                        } else {
-                            if (to != null) {
-                                to.put(c);
-                            }
+            Platform.runLater(() -> {
+                if (cancelled.get()) {
+                    return;
+                }
+                progress.close();
+                onDone.accept(result);
+            });
+        });
+    }
+
+    /**
+     * Fills the clone with frames of the def with colors replaced.
+     *
+     * @return clone of the selected frame
+     */
+    private static DefInfo.Frame replaceColors(DefInfo def, DefInfo clone, Map<Integer, Integer> colorReplacements, Object selected) {
+        DefInfo.Frame selectedFrame = null;
+        for (DefInfo.Group group : def.groups) {
+            DefInfo.Group groupClone = group.cloneBase(clone);
+            for (DefInfo.Frame frame : group.frames) {
+                IntBuffer from = frame.pixels().duplicate();
+                IntBuffer to = null;
+                while (from.hasRemaining()) {
+                    int c = from.get();
+                    Integer replace = colorReplacements.get(c);
+                    if (replace != null) {
+                        if (to == null) {
+                            to = IntBuffer.allocate(frame.pixels().remaining());
+                            to.put(frame.pixels().duplicate());
+                            to.position(from.position() - 1);
+                        }
+                        to.put(replace);
+                    } else {
+                        if (to != null) {
+                            to.put(c);
                         }
                     }
+                }
 
-                    DefInfo.Frame cloneFrame = to == null
-                            ? frame.cloneBase(groupClone)
-                            : frame.cloneBase(groupClone, to.flip());
-                    if (value == frame) {
-                        selectedFrame = cloneFrame;
-                    }
+                DefInfo.Frame cloneFrame = to == null
+                        ? frame.cloneBase(groupClone)
+                        : frame.cloneBase(groupClone, to.flip());
+                if (selected == frame) {
+                    selectedFrame = cloneFrame;
                 }
             }
-
-            clone.palette = toPalette(colors, specialColors, reserved);
-            setDefInternal(clone, selectedFrame);
-            drawPalette(clone);
-            autoscroll();
-            react = false;
-            putHistory(clone, "Palette compaction");
-            react = true;
-            return;
         }
-        int[] palette = toPalette(colors, specialColors, reserved);
-        update("Palette", palette, Function.identity());
+        return selectedFrame;
     }
 
     private void filterChanged(Filter filter) {
@@ -927,50 +1034,6 @@ public class DefEditor extends StackPane {
         return palette;
     }
 
-    private void reducePaletteForOne(List<Integer> colors, Map<Integer, Integer> colorReplacements) {
-        int diff = Integer.MAX_VALUE;
-        int gc1 = 0;
-        int gc2 = 0;
-
-        for (int i = 0; i < colors.size(); i++) {
-            int c1 = colors.get(i);
-            for (int j = i + 1; j < colors.size(); j++) {
-                int c2 = colors.get(j);
-                int d = ImgFilesUtils.colorDifferenceForCompare(c1, c2);
-                if (d < diff) {
-                    gc1 = c1;
-                    gc2 = c2;
-                    diff = d;
-                }
-            }
-        }
-
-        int a = (((gc1 >>> 24) & 0xff) + ((gc2 >>> 24) & 0xff)) >>> 1;
-        int r = (((gc1 >>> 16) & 0xff) + ((gc2 >>> 16) & 0xff)) >>> 1;
-        int g = (((gc1 >>> 8) & 0xff) + ((gc2 >>> 8) & 0xff)) >>> 1;
-        int b = ((gc1 & 0xff) + (gc2 & 0xff)) >>> 1;
-
-        colors.remove((Integer) gc1);
-        colors.remove((Integer) gc2);
-        int gc = a << 24 | r << 16 | g << 8 | b;
-        for (int specColor : DefInfo.SPEC_COLORS) {
-            if (specColor == gc) {
-                gc |= 0x0100;
-                if (specColor == gc) {
-                    gc &= ~0x0100;
-                }
-                break;
-            }
-        }
-        colors.add(gc);
-        if (gc1 != gc) {
-            colorReplacements.put(gc1, gc);
-        }
-        if (gc2 != gc) {
-            colorReplacements.put(gc2, gc);
-        }
-    }
-
     public void start() {
         animationSpeed.start();
     }
@@ -1093,7 +1156,7 @@ public class DefEditor extends StackPane {
             treeGroup.setValue(group);
             for (TreeItem<Object> treeFrame : treeGroup.getChildren()) {
                 DefInfo.Frame prevFrame = (DefInfo.Frame) treeFrame.getValue();
-                DefInfo.Frame frame = prevFrame.cloneBase(group, frameProcessor.apply(prevFrame.pixels.duplicate()));
+                DefInfo.Frame frame = prevFrame.cloneBase(group, frameProcessor.apply(prevFrame.pixels().duplicate()));
                 if (currentFrame == prevFrame) {
                     currentFrame = frame;
                 }
@@ -1214,10 +1277,10 @@ public class DefEditor extends StackPane {
                     Path bmp = extracted.resolve(name + ".bmp");
                     if (Files.exists(png)) {
                         DefInfo info = Png.load(ByteBuffer.wrap(Files.readAllBytes(png)));
-                        frame.cloneBase(base, info.first().pixels);
+                        frame.cloneBase(base, info.first().pixels());
                     } else if (Files.exists(bmp)) {
                         DefInfo info = Bmp.load(ByteBuffer.wrap(Files.readAllBytes(bmp)).order(ByteOrder.LITTLE_ENDIAN));
-                        frame.cloneBase(base, info.fullWidth, info.fullHeight, info.first().pixels);
+                        frame.cloneBase(base, info.fullWidth, info.fullHeight, info.first().pixels());
                     }
                 }
             }
@@ -1362,7 +1425,7 @@ public class DefEditor extends StackPane {
     }
 
     private static DefInfo.Frame ensureNoAlpha(DefInfo.Frame frame) {
-        IntBuffer pixels = frame.pixels.duplicate();
+        IntBuffer pixels = frame.pixels().duplicate();
         while (pixels.hasRemaining()) {
             int color = pixels.get();
             if (color >>> 24 != 0xff) {
@@ -1400,12 +1463,12 @@ public class DefEditor extends StackPane {
         if (def.palette == null) {
             throw showError("There should be a palette");
         }
-        Set<String> hashes = new HashSet<>();
+        Set<ContentHash> hashes = new HashSet<>();
         Set<Integer> palette = Arrays.stream(def.palette).boxed().collect(Collectors.toSet());
         for (DefInfo.Group group : def.groups) {
             for (DefInfo.Frame frame : group.frames) {
-                if (hashes.add(frame.pixelsSha)) {
-                    IntBuffer pixels = frame.pixels.duplicate();
+                if (hashes.add(frame.pixelsHash())) {
+                    IntBuffer pixels = frame.pixels().duplicate();
                     while (pixels.hasRemaining()) {
                         int color = pixels.get();
                         if (!palette.contains(color)) {
@@ -1419,13 +1482,13 @@ public class DefEditor extends StackPane {
     }
 
     private static Map<DefInfo.Frame, DefInfo.FrameInfo> getLinks(DefInfo def) {
-        Map<String, Box> shaToBox = new HashMap<>();
+        Map<ContentHash, Box> hashToBox = new HashMap<>();
         Map<DefInfo.PackedFrame, DefInfo.FrameInfo> frameInfoMap = new LinkedHashMap<>();
         for (DefInfo.Group group : def.groups) {
             for (DefInfo.Frame frame : group.frames) {
-                Box box = shaToBox.computeIfAbsent(
-                        frame.pixelsSha,
-                        s -> DefInfo.calculateTransparent(frame.fullWidth, frame.fullHeight, frame.pixels)
+                Box box = hashToBox.computeIfAbsent(
+                        frame.pixelsHash(),
+                        s -> DefInfo.calculateTransparent(frame.fullWidth, frame.fullHeight, frame.pixels())
                 );
                 DefInfo.FrameInfo info = frameInfoMap.computeIfAbsent(
                         new DefInfo.PackedFrame(frame, box),
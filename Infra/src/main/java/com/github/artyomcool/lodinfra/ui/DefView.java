@@ -16,8 +16,15 @@ public class DefView extends ImageView {
     private Runnable onChanged = () -> {
     };
 
-    private final Map<DefInfo.Frame, Image> mapping = new IdentityHashMap<>();
-    private final Map<DefInfo.Frame, Image> originalMapping = new IdentityHashMap<>();
+    private static final int MAX_IMAGES = 16;
+
+    // images are created on demand and only a few recent ones are kept, they hold pixels of their frames
+    private final Map<DefInfo.Frame, Image> mapping = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<DefInfo.Frame, Image> eldest) {
+            return size() > MAX_IMAGES;
+        }
+    };
     private final List<DefInfo.Frame> frames = new ArrayList<>();
     private final List<Integer> frameIndexToFameGroup = new ArrayList<>();
     private final Map<Integer, Integer> frameGroupToFrameIndex = new HashMap<>();
@@ -33,7 +40,6 @@ public class DefView extends ImageView {
         frameIndexToFameGroup.clear();
         frameGroupToFrameIndex.clear();
         mapping.clear();
-        originalMapping.clear();
         if (def != null) {
             for (DefInfo.Group group : def.groups) {
                 int fi = 0;
@@ -42,8 +48,6 @@ public class DefView extends ImageView {
                     frameIndexToFameGroup.add(frameGroup);
                     frameGroupToFrameIndex.put(frameGroup, frames.size());
                     frames.add(frame);
-                    WritableImage image = new WritableImage(new PixelBuffer<>(frame.fullWidth, frame.fullHeight, frame.pixels.duplicate(), PixelFormat.getIntArgbPreInstance()));
-                    originalMapping.put(frame, image);
                 }
             }
         }
@@ -121,11 +125,9 @@ public class DefView extends ImageView {
         }
         Image image = mapping.get(frame);
         if (image == null) {
-            image = originalMapping.get(frame);
-            if (image != null) {
-                image = transform.apply(image);
-                mapping.put(frame, image);
-            }
+            image = new WritableImage(new PixelBuffer<>(frame.fullWidth, frame.fullHeight, frame.pixels().duplicate(), PixelFormat.getIntArgbPreInstance()));
+            image = transform.apply(image);
+            mapping.put(frame, image);
         }
         return image;
     }
@@ -1,5 +1,6 @@
 package com.github.artyomcool.lodinfra.ui;
 
+import com.github.artyomcool.lodinfra.ContentHash;
 import com.github.artyomcool.lodinfra.Icons;
 import com.github.artyomcool.lodinfra.LodType;
 import com.github.artyomcool.lodinfra.Resource;
@@ -40,7 +41,9 @@ import org.controlsfx.control.SegmentedButton;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
@@ -51,12 +54,16 @@ import java.time.format.DateTimeFormatterBuilder;
 import java.time.temporal.ChronoField;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 import java.util.prefs.Preferences;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
@@ -66,28 +73,44 @@ import static javafx.scene.control.TreeTableView.UNCONSTRAINED_RESIZE_POLICY;
 
 public class DiffUi extends Application {
 
+    // a lot of changes at once are cheaper to rescan as a whole than to find in the tree one by one
+    private static final int FULL_RESCAN_CHANGES = 1000;
+
     private final Preferences prefs = Preferences.userRoot().node(this.getClass().getName());
     private final Insets padding = new Insets(2, 2, 2, 2);
 
     private final Path localPath;
     private final Path remotePath;
     private final Properties cfg;
+    private final Pattern ignoreLocal;
+    private final Pattern ignoreRemote;
     private final Path logs;
     private final String nick;
+    private final FileTransfer fileTransfer;
+    private final FileHashCache hashes;
     private final Executor pollFilesExecutor = Executors.newSingleThreadExecutor(runnable -> {
         Thread thread = new Thread(runnable);
         thread.setDaemon(true);
         return thread;
     });
+    // the remote side is scanned here while the calling thread scans the local one
+    private final Executor scanFilesExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "DiffUi scan thread");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private Consumer<TreeItem<Item>> onFilesChangedAction = t -> {
     };
+    // new root and paths of the replaced subtrees, the shown view patches only their rows
+    private BiConsumer<TreeItem<Item>, Set<Path>> onRowsChangedAction = (t, paths) -> onFilesChangedAction.accept(t);
     private Consumer<String> onFilterChanged = s -> {
     };
 
     private Stage primaryStage;
     private ResourceCompareView preview;
     private TreeItem<Item> rootItem;
+    private LastSync lastSync;
     private WatchService watchService;
     private TextField search;
     private CheckBox searchRegex;
@@ -101,6 +124,14 @@ public class DiffUi extends Application {
         this.logs = logs;
         this.nick = nick;
         this.cfg = cfg;
+        this.ignoreLocal = ignorePattern(cfg, "ignore.local");
+        this.ignoreRemote = ignorePattern(cfg, "ignore.remote");
+        this.fileTransfer = new FileTransfer(
+                Integer.parseInt(cfg.getProperty("transfer.threads", "4")),
+                Boolean.parseBoolean(cfg.getProperty("transfer.verify", "false"))
+        );
+        // next to the sync logs, a cache inside the local tree would be diffed and synced itself
+        this.hashes = new FileHashCache(logs.toAbsolutePath().resolveSibling("hashCache"), this::onHashed);
     }
 
     @Override
@@ -142,14 +173,11 @@ public class DiffUi extends Application {
         }
     }
 
+    /**
+     * Line of the old text lastSyncTs, only read to migrate it.
+     */
     record LastTs(String relativePath, long ts, boolean local) {
 
-        public static final LastTs NONE = new LastTs(null, 0, false);
-
-        public String toLine() {
-            return relativePath + ";" + ts + ";" + local;
-        }
-
         public static LastTs fromLine(String line) {
             String[] args = line.split(";");
             return new LastTs(
@@ -160,6 +188,172 @@ public class DiffUi extends Application {
         }
     }
 
+    /**
+     * Timestamps of both sides at the moment they were seen the same, by relative path.
+     * Stored as a journal: a path is written once and then referred by its index, every change is appended
+     * as a record, and the whole journal is rewritten with the current state only when it grows too long.
+     */
+    private static class LastSync {
+        private static final int MAGIC = 0x3153544c;    // "1STL" as written in big endian
+        private static final byte PATH = 1;             // index is implicit: paths are numbered in order
+        private static final byte TS = 2;
+        private static final byte REMOVE = 3;
+
+        final Path file;
+        boolean existed;
+        private final Map<Path, Long> local = new HashMap<>();
+        private final Map<Path, Long> remote = new HashMap<>();
+
+        private final Map<Path, Integer> ids = new HashMap<>();
+        private final ByteArrayOutputStream appended = new ByteArrayOutputStream();
+        private final DataOutputStream journal = new DataOutputStream(appended);
+        private int records;
+        private boolean compact;
+
+        private LastSync(Path file, boolean existed) {
+            this.file = file;
+            this.existed = existed;
+        }
+
+        static LastSync read(Path file) throws IOException {
+            LastSync sync = new LastSync(file, Files.exists(file));
+            if (!sync.existed) {
+                return sync;
+            }
+
+            byte[] data = Files.readAllBytes(file);
+            if (data.length < 4 || ByteBuffer.wrap(data).getInt() != MAGIC) {
+                new String(data, StandardCharsets.UTF_8).lines().filter(line -> !line.isEmpty()).map(LastTs::fromLine).forEach(f ->
+                        (f.local ? sync.local : sync.remote).put(Path.of(f.relativePath), f.ts)
+                );
+                sync.compact = true;
+                return sync;
+            }
+
+            List<Path> paths = new ArrayList<>();
+            try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(data, 4, data.length - 4))) {
+                while (input.available() > 0) {
+                    byte type = input.readByte();
+                    switch (type) {
+                        case PATH -> paths.add(Path.of(input.readUTF()));
+                        case TS -> {
+                            Path path = paths.get(input.readInt());
+                            boolean local = input.readBoolean();
+                            (local ? sync.local : sync.remote).put(path, input.readLong());
+                        }
+                        case REMOVE -> {
+                            Path path = paths.get(input.readInt());
+                            (input.readBoolean() ? sync.local : sync.remote).remove(path);
+                        }
+                        default -> throw new IOException("Unknown record " + type + " in " + file);
+                    }
+                    sync.records++;
+                }
+            } catch (EOFException e) {
+                // the last record was cut by a crash, what was read before it is still valid
+                sync.compact = true;
+            } catch (IOException | IndexOutOfBoundsException e) {
+                e.printStackTrace();
+                sync.compact = true;
+            }
+            for (int i = 0; i < paths.size(); i++) {
+                sync.ids.put(paths.get(i), i);
+            }
+            return sync;
+        }
+
+        /**
+         * @return last synced timestamp of the side, the current one if there was no sync yet at all
+         */
+        long ts(Path path, boolean local, long current) {
+            if (!existed) {
+                return current;
+            }
+            return (local ? this.local : remote).getOrDefault(path, 0L);
+        }
+
+        void put(Path path, boolean local, long ts) {
+            Long prev = (local ? this.local : remote).put(path, ts);
+            if (prev == null || prev != ts) {
+                write(TS, path, local, ts);
+            }
+        }
+
+        void removeIf(boolean local, Predicate<Path> predicate) {
+            Iterator<Path> iterator = (local ? this.local : remote).keySet().iterator();
+            while (iterator.hasNext()) {
+                Path path = iterator.next();
+                if (predicate.test(path)) {
+                    iterator.remove();
+                    write(REMOVE, path, local, 0);
+                }
+            }
+        }
+
+        /**
+         * Appends records of the changes since the last save.
+         */
+        void save() throws IOException {
+            if (compact || (existed && records > 2 * (local.size() + remote.size() + ids.size()) + 1024)) {
+                compact();
+                return;
+            }
+            if (appended.size() == 0) {
+                return;
+            }
+            if (!existed) {
+                compact();
+                return;
+            }
+            Files.write(file, appended.toByteArray(), StandardOpenOption.APPEND);
+            appended.reset();
+        }
+
+        private void compact() throws IOException {
+            ids.clear();
+            appended.reset();
+            records = 0;
+            for (Map.Entry<Path, Long> entry : local.entrySet()) {
+                write(TS, entry.getKey(), true, entry.getValue());
+            }
+            for (Map.Entry<Path, Long> entry : remote.entrySet()) {
+                write(TS, entry.getKey(), false, entry.getValue());
+            }
+
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (OutputStream output = Files.newOutputStream(temp)) {
+                output.write(ByteBuffer.allocate(4).putInt(MAGIC).array());
+                appended.writeTo(output);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            appended.reset();
+            compact = false;
+            existed = true;
+        }
+
+        private void write(byte type, Path path, boolean local, long ts) {
+            try {
+                Integer id = ids.get(path);
+                if (id == null) {
+                    id = ids.size();
+                    ids.put(path, id);
+                    journal.writeByte(PATH);
+                    journal.writeUTF(path.toString());
+                    records++;
+                }
+                journal.writeByte(type);
+                journal.writeInt(id);
+                journal.writeBoolean(local);
+                if (type == TS) {
+                    journal.writeLong(ts);
+                }
+                records++;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
     private static class Item extends RecursiveTreeObject<Item> {
         final FileInfo local;
         final FileInfo remote;
@@ -179,12 +373,15 @@ public class DiffUi extends Application {
                     remote.lastModified == null ? 0 : remote.lastModified.toMillis());
         }
 
-        Item(FileInfo local, FileInfo remote, long prevLocal, long prevRemote) {
+        /**
+         * @param sameContent  files are known to be byte-identical, timestamps do not matter then
+         */
+        Item(FileInfo local, FileInfo remote, long prevLocal, long prevRemote, boolean sameContent) {
             this.local = local;
             this.remote = remote;
             this.isSynthetic = false;
 
-            status = status(prevLocal, prevRemote);
+            status = sameContent ? ItemStatus.SAME : status(prevLocal, prevRemote);
         }
 
         public Item foldInto(Item value) {
@@ -269,6 +466,9 @@ public class DiffUi extends Application {
             primaryStage.setTitle("Directory diff");
             StackPane root = new StackPane();
 
+            // directories are registered while the tree is scanned
+            watchService = localPath.getFileSystem().newWatchService();
+
             VBox lastFiles = files(root);
             preview = new ResourceCompareView(cfg, localPath.resolve("restore"));
             preview.setPadding(new Insets(4, 4, 2, 4));
@@ -288,33 +488,35 @@ public class DiffUi extends Application {
             primaryStage.setScene(scene);
             primaryStage.show();
 
-            watchService = localPath.getFileSystem().newWatchService();
-            localPath.register(watchService,
-                    StandardWatchEventKinds.ENTRY_CREATE,
-                    StandardWatchEventKinds.ENTRY_DELETE,
-                    StandardWatchEventKinds.ENTRY_MODIFY);
-            remotePath.register(watchService,
-                    StandardWatchEventKinds.ENTRY_CREATE,
-                    StandardWatchEventKinds.ENTRY_DELETE,
-                    StandardWatchEventKinds.ENTRY_MODIFY);
-
             pollFilesExecutor.execute(() -> {
                 try {
                     while (true) {
+                        Set<Path> changed = new HashSet<>();
+                        boolean overflow = false;
                         WatchKey key = watchService.take();
-                        key.pollEvents();
-                        key.reset();
-                        while ((key = watchService.poll(1, TimeUnit.SECONDS)) != null) {
-                            key.pollEvents();
+                        do {
+                            overflow |= collectChanges(key, changed);
                             key.reset();
+                        } while ((key = watchService.poll(200, TimeUnit.MILLISECONDS)) != null);
+
+                        try {
+                            if (overflow) {
+                                reloadTree();
+                            } else {
+                                loadChanges(changed);
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            // e.g. a directory is gone while it is rescanned, the full rescan puts everything in order
+                            e.printStackTrace();
+                            try {
+                                reloadTree();
+                            } catch (IOException | RuntimeException ex) {
+                                ex.printStackTrace();
+                            }
                         }
-                        TreeItem<Item> item = loadTree();
-                        Platform.runLater(() -> onFilesChangedAction.accept(item));
                     }
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
                 }
             });
         } catch (Exception e) {
@@ -322,6 +524,189 @@ public class DiffUi extends Application {
         }
     }
 
+    private void reloadTree() throws IOException {
+        TreeItem<Item> item = loadTree();
+        Platform.runLater(() -> onFilesChangedAction.accept(item));
+    }
+
+    /**
+     * @return true if some events were lost and the whole tree has to be rescanned
+     */
+    private boolean collectChanges(WatchKey key, Set<Path> changed) {
+        Path dir = (Path) key.watchable();
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+
+            Path path = dir.resolve((Path) event.context());
+            // children report their own changes, a modified directory itself has nothing to show
+            if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY && Files.isDirectory(path)) {
+                continue;
+            }
+
+            boolean local = isLocal(path);
+            Pattern ignore = local ? ignoreLocal : ignoreRemote;
+            if (FileTransfer.isTemporary(path) || ignore.matcher(path.toAbsolutePath().normalize().toString()).matches()) {
+                continue;
+            }
+            Path relative = (local ? localPath : remotePath).relativize(path);
+            if (!relative.toString().isEmpty()) {
+                changed.add(relative);
+            }
+        }
+        return overflow;
+    }
+
+    private boolean isLocal(Path path) {
+        // one root can be inside the other one, the deeper root wins
+        if (path.startsWith(localPath) && path.startsWith(remotePath)) {
+            return localPath.getNameCount() > remotePath.getNameCount();
+        }
+        return path.startsWith(localPath);
+    }
+
+    private void onHashed(Set<Path> files) {
+        Set<Path> changed = new HashSet<>();
+        for (Path file : files) {
+            changed.add((isLocal(file) ? localPath : remotePath).relativize(file));
+        }
+        try {
+            loadChanges(changed);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Rescans the relative paths and applies them to the tree on the FX thread.
+     */
+    private void loadChanges(Set<Path> changed) throws IOException {
+        if (changed.size() > FULL_RESCAN_CHANGES) {
+            reloadTree();
+            return;
+        }
+
+        // a subtree is rescanned as a whole, so changes inside it are already covered
+        changed.removeIf(path -> {
+            for (Path parent = path.getParent(); parent != null; parent = parent.getParent()) {
+                if (changed.contains(parent)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+
+        Map<Path, TreeItem<Item>> subtrees = new HashMap<>();
+        for (Path path : changed) {
+            subtrees.put(path, loadSubtree(path));
+        }
+        if (!subtrees.isEmpty()) {
+            Platform.runLater(() -> applyChanges(subtrees));
+        }
+    }
+
+    /**
+     * Runs the tasks in background behind a progress dialog, then refreshes rows of the changed files.
+     *
+     * @param onDone  called on the FX thread with tasks that failed
+     */
+    private void transfer(String title, List<FileTransfer.Task> tasks, Consumer<List<FileTransfer.Failure>> onDone) {
+        ProgressBar progressBar = new ProgressBar(0);
+        progressBar.setPrefWidth(300);
+        Alert progress = new Alert(Alert.AlertType.NONE, "", ButtonType.CANCEL);
+        progress.setTitle(title);
+        progress.getDialogPane().setContent(progressBar);
+
+        FileTransfer.Transfer transfer = fileTransfer.start(
+                tasks,
+                finished -> Platform.runLater(() -> progressBar.setProgress((double) finished / tasks.size()))
+        );
+        progress.setOnHidden(e -> transfer.cancel());
+        progress.show();
+
+        transfer.done().thenAccept(failures -> {
+            Set<Path> changed = new HashSet<>();
+            for (FileTransfer.Task task : tasks) {
+                changed.add((isLocal(task.to()) ? localPath : remotePath).relativize(task.to()));
+            }
+            Platform.runLater(() -> {
+                progress.setOnHidden(null);
+                progress.close();
+                onDone.accept(failures);
+            });
+            try {
+                loadChanges(changed);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Replaces changed subtrees of the current tree in place, null subtree means the path is gone on both sides.
+     */
+    private void applyChanges(Map<Path, TreeItem<Item>> subtrees) {
+        for (Map.Entry<Path, TreeItem<Item>> entry : subtrees.entrySet()) {
+            Path path = entry.getKey();
+            TreeItem<Item> parent = find(rootItem, path.getParent());
+            if (parent == null) {
+                // the parent itself is not known yet, e.g. it is ignored or its event is still on the way
+                scanFilesExecutor.execute(() -> {
+                    try {
+                        reloadTree();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                });
+                return;
+            }
+
+            ObservableList<TreeItem<Item>> children = parent.getChildren();
+            Path name = path.getFileName();
+            children.removeIf(child -> child.getValue().local.path.getFileName().equals(name));
+
+            TreeItem<Item> subtree = entry.getValue();
+            if (subtree != null) {
+                int index = 0;
+                while (index < children.size()
+                        && children.get(index).getValue().local.path.compareTo(subtree.getValue().local.path) < 0) {
+                    index++;
+                }
+                children.add(index, subtree);
+            }
+        }
+
+        // a new root lets the views that are not shown now notice the change when they are shown
+        TreeItem<Item> root = new TreeItem<>(rootItem.getValue());
+        root.getChildren().setAll(rootItem.getChildren());
+        rootItem = root;
+        onRowsChangedAction.accept(root, subtrees.keySet());
+    }
+
+    private static TreeItem<Item> find(TreeItem<Item> root, Path relative) {
+        if (relative == null) {
+            return root;
+        }
+        TreeItem<Item> item = root;
+        for (Path name : relative) {
+            TreeItem<Item> next = null;
+            for (TreeItem<Item> child : item.getChildren()) {
+                if (child.getValue().local.path.getFileName().equals(name)) {
+                    next = child;
+                    break;
+                }
+            }
+            if (next == null) {
+                return null;
+            }
+            item = next;
+        }
+        return item;
+    }
+
     private void executeCheckTreeItem(Map<Item, ItemAction> actions, TreeItem<Item> treeItem, boolean checked, ItemAction positive) {
         Item item;
         if (checked) {
@@ -387,7 +772,7 @@ public class DiffUi extends Application {
                         }
                     }
                 }
-                DefInfo defInfo = DefInfo.load(item.getValue().local.path);
+                DefInfo defInfo = DefInfo.load(item.getValue().local.path, true);
                 if (defInfo != null) {
                     List<DefInfo.Frame> frames = defInfo.frames();
                     for (DefInfo.Frame frame : frames) {
@@ -500,6 +885,7 @@ public class DiffUi extends Application {
 
             {
                 fetchButton.setOnAction(a -> {
+                    List<FileTransfer.Task> tasks = new ArrayList<>();
                     for (Map.Entry<Item, ItemAction> entry : fetchActions.entrySet()) {
                         if (entry.getValue() != ItemAction.REMOTE_TO_LOCAL) {
                             continue;
@@ -509,30 +895,18 @@ public class DiffUi extends Application {
                         if (item.isSynthetic || item.remote.isDirectory) {
                             continue;
                         }
-                        try {
-                            if (item.remote.lastModified == null) {
-                                Files.delete(item.local.path);
-                            } else {
-                                Files.createDirectories(item.local.path.getParent());
-                                Files.copy(
-                                        item.remote.path,
-                                        item.local.path,
-                                        StandardCopyOption.REPLACE_EXISTING,
-                                        StandardCopyOption.COPY_ATTRIBUTES
-                                );
-                            }
-                        } catch (IOException exception) {
-                            exception.printStackTrace();
-                        }
+                        tasks.add(new FileTransfer.Task(
+                                item.remote.lastModified == null ? null : item.remote.path,
+                                item.local.path
+                        ));
                     }
                     fetchActions.clear();
-                    try {
-                        rootItem = loadTree();
-                    } catch (IOException exception) {
-                        throw new UncheckedIOException(exception);
-                    }
 
-                    updateRoot();
+                    transfer("Fetch", tasks, failures -> {
+                        for (FileTransfer.Failure failure : failures) {
+                            failure.error().printStackTrace();
+                        }
+                    });
                 });
             }
 
@@ -564,6 +938,11 @@ public class DiffUi extends Application {
                         rootItem = treeItem;
                         updateRoot();
                     };
+                    onRowsChangedAction = (treeItem, paths) -> {
+                        rootItem = treeItem;
+                        cachedGlobalRoot = treeItem;
+                        patchShown(itemTreeItem, paths, DiffUi.this::fetchFilter, fetchActions);
+                    };
                 }
             }
         });
@@ -617,6 +996,7 @@ public class DiffUi extends Application {
                         return;
                     }
 
+                    List<FileTransfer.Task> tasks = new ArrayList<>();
                     for (Map.Entry<Item, ItemAction> entry : pushActions.entrySet()) {
                         if (entry.getValue() != ItemAction.LOCAL_TO_REMOTE) {
                             continue;
@@ -626,44 +1006,31 @@ public class DiffUi extends Application {
                         if (item.isSynthetic || item.local.isDirectory) {
                             continue;
                         }
+                        tasks.add(new FileTransfer.Task(
+                                item.local.lastModified == null ? null : item.local.path,
+                                item.remote.path
+                        ));
+                    }
+                    pushActions.clear();
 
-                        try {
-                            if (item.local.lastModified == null) {
-                                Files.delete(item.remote.path);
-                            } else {
-                                Files.createDirectories(item.remote.path.getParent());
-                                Files.copy(
-                                        item.local.path,
-                                        item.remote.path,
-                                        StandardCopyOption.REPLACE_EXISTING,
-                                        StandardCopyOption.COPY_ATTRIBUTES
-                                );
-                            }
-                        } catch (IOException exception) {
-                            exception.printStackTrace();
+                    String description = text;
+                    transfer("Push", tasks, failures -> {
+                        StringBuilder log = new StringBuilder(description);
+                        for (FileTransfer.Failure failure : failures) {
+                            failure.error().printStackTrace();
 
                             StringWriter sw = new StringWriter();
                             PrintWriter pw = new PrintWriter(sw);
-                            exception.printStackTrace(pw);
-                            text = text + "\r\n" + sw;
+                            failure.error().printStackTrace(pw);
+                            log.append("\r\n").append(sw);
                         }
-                    }
-
-                    try {
-                        Files.createDirectories(logs);
-                        Files.writeString(logs.resolve(LocalDateTime.now(ZoneOffset.UTC).format(dtf)), text);
-                    } catch (IOException exception) {
-                        exception.printStackTrace();
-                    }
-
-                    pushActions.clear();
-                    try {
-                        rootItem = loadTree();
-                    } catch (IOException exception) {
-                        throw new UncheckedIOException(exception);
-                    }
-
-                    updateRoot();
+                        try {
+                            Files.createDirectories(logs);
+                            Files.writeString(logs.resolve(LocalDateTime.now(ZoneOffset.UTC).format(dtf)), log);
+                        } catch (IOException exception) {
+                            exception.printStackTrace();
+                        }
+                    });
                 });
             }
 
@@ -677,6 +1044,7 @@ public class DiffUi extends Application {
                     if (alert.getResult() != ButtonType.YES) {
                         return;
                     }
+                    List<FileTransfer.Task> tasks = new ArrayList<>();
                     for (Map.Entry<Item, ItemAction> entry : pushActions.entrySet()) {
                         if (entry.getValue() != ItemAction.LOCAL_TO_REMOTE) {
                             continue;
@@ -686,31 +1054,18 @@ public class DiffUi extends Application {
                         if (item.isSynthetic) {
                             continue;
                         }
-
-                        try {
-                            if (item.remote.lastModified == null && item.local.isFile) {
-                                Files.delete(item.local.path);
-                            } else {
-                                Files.copy(
-                                        item.remote.path,
-                                        item.local.path,
-                                        StandardCopyOption.REPLACE_EXISTING,
-                                        StandardCopyOption.COPY_ATTRIBUTES
-                                );
-                            }
-                        } catch (IOException exception) {
-                            exception.printStackTrace();
-                        }
+                        tasks.add(new FileTransfer.Task(
+                                item.remote.lastModified == null && item.local.isFile ? null : item.remote.path,
+                                item.local.path
+                        ));
                     }
-
                     pushActions.clear();
-                    try {
-                        rootItem = loadTree();
-                    } catch (IOException exception) {
-                        throw new UncheckedIOException(exception);
-                    }
 
-                    updateRoot();
+                    transfer("Revert", tasks, failures -> {
+                        for (FileTransfer.Failure failure : failures) {
+                            failure.error().printStackTrace();
+                        }
+                    });
                 });
             }
 
@@ -734,6 +1089,11 @@ public class DiffUi extends Application {
                         rootItem = treeItem;
                         updateRoot();
                     };
+                    onRowsChangedAction = (treeItem, paths) -> {
+                        rootItem = treeItem;
+                        cachedGlobalRoot = treeItem;
+                        patchShown(itemTreeItem, paths, DiffUi.this::pushFilter, pushActions);
+                    };
                 }
             }
         });
@@ -759,6 +1119,11 @@ public class DiffUi extends Application {
                         rootItem = treeItem;
                         updateRoot();
                     };
+                    onRowsChangedAction = (treeItem, paths) -> {
+                        rootItem = treeItem;
+                        cachedGlobalRoot = treeItem;
+                        patchShown(itemTreeItem.getChildren().get(0), paths, DiffUi.this::observeFilter, observeActions);
+                    };
                 }
             }
 
@@ -800,6 +1165,7 @@ public class DiffUi extends Application {
                         rootItem = treeItem;
                         updateRoot();
                     };
+                    onRowsChangedAction = (treeItem, paths) -> onFilesChangedAction.accept(treeItem);
                 }
             }
 
@@ -1490,11 +1856,12 @@ public class DiffUi extends Application {
 
         try {
             if (local.isFile) {
-                Archive lod = LodFile.load(local.path);
-                for (Archive.Element subFile : lod.files()) {
-                    String name = subFile.name().toLowerCase();
-                    allResources.add(name);
-                    localMapping.put(name, subFile);
+                try (Archive lod = LodFile.map(local.path)) {
+                    for (Archive.Element subFile : lod.files()) {
+                        String name = subFile.name().toLowerCase();
+                        allResources.add(name);
+                        localMapping.put(name, subFile);
+                    }
                 }
             }
 
@@ -1523,6 +1890,11 @@ public class DiffUi extends Application {
     }
 
     private TreeItem<Item> filterForObserve(TreeItem<Item> rootItem) {
+        TreeItem<Item> filter = observeFilter(rootItem);
+        return filter == null ? new TreeItem<>(rootItem.getValue()) : filter;
+    }
+
+    private TreeItem<Item> observeFilter(TreeItem<Item> subtree) {
         Predicate<TreeItem<Item>> preFilter = item -> true;
         Function<TreeItem<Item>, TreeItem<Item>> fold = item -> {
             if (item.getChildren().size() == 1) {
@@ -1542,8 +1914,7 @@ public class DiffUi extends Application {
             }
             return item;
         };
-        TreeItem<Item> filter = filter(rootItem, preFilter, fold);
-        return filter == null ? new TreeItem<>(rootItem.getValue()) : filter;
+        return filter(subtree, preFilter, fold);
     }
 
     private TreeItem<Item> filterForInProgress(Path restore) {
@@ -1602,6 +1973,11 @@ public class DiffUi extends Application {
     }
 
     private TreeItem<Item> filterForFetch() {
+        TreeItem<Item> filter = fetchFilter(rootItem);
+        return filter == null ? new TreeItem<>(rootItem.getValue()) : filter;
+    }
+
+    private TreeItem<Item> fetchFilter(TreeItem<Item> subtree) {
         Predicate<TreeItem<Item>> preFilter = item -> {
             if (!item.getChildren().isEmpty()) {
                 return !item.getValue().local.name.startsWith("[");
@@ -1624,11 +2000,15 @@ public class DiffUi extends Application {
             item.setExpanded(true);
             return item;
         };
-        TreeItem<Item> filter = filter(rootItem, preFilter, fold);
-        return filter == null ? new TreeItem<>(rootItem.getValue()) : filter;
+        return filter(subtree, preFilter, fold);
     }
 
     private TreeItem<Item> filterForPush() {
+        TreeItem<Item> filter = pushFilter(rootItem);
+        return filter == null ? new TreeItem<>(rootItem.getValue()) : filter;
+    }
+
+    private TreeItem<Item> pushFilter(TreeItem<Item> subtree) {
         Predicate<TreeItem<Item>> preFilter = item -> {
             if (!item.getChildren().isEmpty()) {
                 return !item.getValue().local.name.startsWith("[");
@@ -1649,8 +2029,7 @@ public class DiffUi extends Application {
             item.setExpanded(true);
             return item;
         };
-        TreeItem<Item> filter = filter(rootItem, preFilter, fold);
-        return filter == null ? new TreeItem<>(rootItem.getValue()) : filter;
+        return filter(subtree, preFilter, fold);
     }
 
     private boolean matchesToFilter(String itemName) {
@@ -1691,6 +2070,119 @@ public class DiffUi extends Application {
         return searchPattern.matcher(itemName).matches();
     }
 
+    /**
+     * Filters again only the changed part of the tree and patches the shown tree in place, so the other rows keep
+     * their selection, expansion and actions.
+     *
+     * @param shown   filtered tree of {@link #rootItem} that is shown now
+     * @param changed paths of the subtrees replaced in {@link #rootItem}
+     */
+    private void patchShown(
+            TreeItem<Item> shown,
+            Set<Path> changed,
+            UnaryOperator<TreeItem<Item>> filter,
+            Map<Item, ItemAction> actions
+    ) {
+        for (Path path : changed) {
+            TreeItem<Item> item = find(rootItem, path.getParent());
+            // rows around a parent that is folded or filtered out, before or after the change, are changed as well,
+            // so the nearest ancestor that is shown as is in both cases is patched
+            while (item != null && item != rootItem) {
+                TreeItem<Item> shownItem = findShown(shown, item.getValue());
+                TreeItem<Item> filtered = shownItem == null ? null : filter.apply(item);
+                if (filtered != null && filtered.getValue() == item.getValue()) {
+                    patchChildren(shownItem, filtered, actions);
+                    break;
+                }
+                item = item.getParent();
+            }
+            if (item == null || item == rootItem) {
+                TreeItem<Item> filtered = filter.apply(rootItem);
+                patchChildren(shown, filtered == null ? new TreeItem<>(rootItem.getValue()) : filtered, actions);
+            }
+        }
+    }
+
+    private static TreeItem<Item> findShown(TreeItem<Item> shown, Item value) {
+        if (shown.getValue() == value) {
+            return shown;
+        }
+        for (TreeItem<Item> child : shown.getChildren()) {
+            // a folded row has the path of its deepest item, so rows below it are below that path as well
+            if (value.local.path.startsWith(child.getValue().local.path)) {
+                TreeItem<Item> found = findShown(child, value);
+                if (found != null) {
+                    return found;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Makes children of the shown item the same as of the filtered one, shown rows of the same paths are kept
+     * and get new values, actions are moved to the new values.
+     */
+    private static void patchChildren(TreeItem<Item> shown, TreeItem<Item> filtered, Map<Item, ItemAction> actions) {
+        Map<Path, TreeItem<Item>> removed = new HashMap<>();
+        for (TreeItem<Item> child : shown.getChildren()) {
+            removed.put(child.getValue().local.path, child);
+        }
+
+        List<TreeItem<Item>> children = new ArrayList<>(filtered.getChildren().size());
+        Set<TreeItem<Item>> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (TreeItem<Item> child : filtered.getChildren()) {
+            TreeItem<Item> row = removed.remove(child.getValue().local.path);
+            if (row == null) {
+                children.add(child);
+                continue;
+            }
+            Item previous = row.getValue();
+            if (previous != child.getValue()) {
+                ItemAction action = actions.remove(previous);
+                if (action != null) {
+                    actions.put(child.getValue(), action);
+                }
+                row.setValue(child.getValue());
+            }
+            if (child.isExpanded()) {
+                row.setExpanded(true);
+            }
+            patchChildren(row, child, actions);
+            children.add(row);
+            kept.add(row);
+        }
+        for (TreeItem<Item> row : removed.values()) {
+            forgetActions(row, actions);
+        }
+
+        ObservableList<TreeItem<Item>> shownChildren = shown.getChildren();
+        if (!removed.isEmpty()) {
+            Set<TreeItem<Item>> gone = Collections.newSetFromMap(new IdentityHashMap<>());
+            gone.addAll(removed.values());
+            shownChildren.removeIf(gone::contains);
+        }
+        for (int i = 0; i < children.size(); i++) {
+            TreeItem<Item> child = children.get(i);
+            if (i < shownChildren.size() && shownChildren.get(i) == child) {
+                continue;
+            }
+            if (kept.contains(child)) {
+                // kept rows are in the same order as before, it is not expected to happen
+                shownChildren.setAll(children);
+                return;
+            }
+            shownChildren.add(i, child);
+        }
+    }
+
+    private static void forgetActions(TreeItem<Item> row, Map<Item, ItemAction> actions) {
+        actions.remove(row.getValue());
+        for (TreeItem<Item> child : row.getChildren()) {
+            forgetActions(child, actions);
+        }
+    }
+
     private TreeItem<Item> filter(
             TreeItem<Item> item,
             Predicate<TreeItem<Item>> preFilter,
@@ -1717,30 +2209,78 @@ public class DiffUi extends Application {
         return isRoot ? item : fold.apply(item);
     }
 
-    private TreeItem<Item> loadTree() throws IOException {
-        Set<Path> allPaths = loadAllPaths();
+    private synchronized TreeItem<Item> loadTree() throws IOException {
+        CompletableFuture<Map<Path, BasicFileAttributes>> remoteScan = CompletableFuture.supplyAsync(() -> {
+            try {
+                return scan(remotePath, remotePath, ignoreRemote);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, scanFilesExecutor);
+        Map<Path, BasicFileAttributes> localFiles = scan(localPath, localPath, ignoreLocal);
+        Map<Path, BasicFileAttributes> remoteFiles;
+        try {
+            remoteFiles = remoteScan.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException io) {
+                throw io.getCause();
+            }
+            throw e;
+        }
+        watch(localPath, localFiles);
+        watch(remotePath, remoteFiles);
 
         TreeItem<Item> rootItem = new TreeItem<>(new Item(
                 new FileInfo(localPath, "Local files", Files.getLastModifiedTime(localPath), null, true, false, true),
                 new FileInfo(remotePath, "Remote files", Files.getLastModifiedTime(remotePath), null, true, false, false)
         ));
 
+        if (lastSync == null) {
+            lastSync = LastSync.read(localPath.resolve("lastSyncTs"));
+        }
+        Set<Path> synced = addItems(rootItem, localFiles, remoteFiles);
 
-        Path lastSyncTs = localPath.resolve("lastSyncTs");
-        boolean hasFile = Files.exists(lastSyncTs);
-        Map<Path, LastTs> prevLocalTs = new HashMap<>();
-        Map<Path, LastTs> prevRemoteTs = new HashMap<>();
-        Set<LastTs> prevSync = new HashSet<>();
-        try (var lines = Files.lines(lastSyncTs)) {
-            lines.map(LastTs::fromLine).forEach(f -> {
-                (f.local ? prevLocalTs : prevRemoteTs).put(Path.of(f.relativePath), f);
-                prevSync.add(f);
-            });
-        } catch (NoSuchFileException ignored) {
+        // fixme now != prev
+        lastSync.removeIf(true, path -> !synced.contains(path) && !Files.exists(remotePath.resolve(path)));
+        lastSync.removeIf(false, path -> !synced.contains(path) && !Files.exists(localPath.resolve(path)));
+        lastSync.save();
+
+        return rootItem;
+    }
+
+    /**
+     * Rescans the path on both sides.
+     *
+     * @return item of the path with all its children, or null if there is no such path on both sides
+     */
+    private synchronized TreeItem<Item> loadSubtree(Path relative) throws IOException {
+        Map<Path, BasicFileAttributes> localFiles = scan(localPath, localPath.resolve(relative), ignoreLocal);
+        Map<Path, BasicFileAttributes> remoteFiles = scan(remotePath, remotePath.resolve(relative), ignoreRemote);
+        watch(localPath, localFiles);
+        watch(remotePath, remoteFiles);
+
+        TreeItem<Item> holder = new TreeItem<>();
+        if (lastSync == null) {
+            lastSync = LastSync.read(localPath.resolve("lastSyncTs"));
         }
+        addItems(holder, localFiles, remoteFiles);
+        lastSync.save();
+
+        return holder.getChildren().isEmpty() ? null : holder.getChildren().get(0);
+    }
+
+    /**
+     * Adds items for all the paths to the root, parents should go before their children.
+     *
+     * @return paths that are the same on both sides
+     */
+    private Set<Path> addItems(TreeItem<Item> rootItem, Map<Path, BasicFileAttributes> localFiles, Map<Path, BasicFileAttributes> remoteFiles) {
+        Set<Path> allPaths = new TreeSet<>();
+        allPaths.addAll(remoteFiles.keySet());
+        allPaths.addAll(localFiles.keySet());
 
         Map<Path, TreeItem<Item>> expandedTree = new HashMap<>();
-        List<LastTs> updated = new ArrayList<>();
+        Set<Path> synced = new HashSet<>();
 
         for (Path path : allPaths) {
             if (path.getFileName().toString().isEmpty()) {
@@ -1748,110 +2288,93 @@ public class DiffUi extends Application {
                 continue;
             }
 
-            Path local = localPath.resolve(path);
-            Path remote = remotePath.resolve(path);
-
-            boolean localExists = Files.exists(local);
-            boolean remoteExists = Files.exists(remote);
-
-            boolean localIsDirectory = Files.isDirectory(local);
-            boolean remoteIsDirectory = Files.isDirectory(remote);
+            BasicFileAttributes localAttrs = localFiles.get(path);
+            BasicFileAttributes remoteAttrs = remoteFiles.get(path);
+            // a path may be ignored on one side only, then it must not look missing there, or a transfer overwrites it
+            if (localAttrs == null) {
+                localAttrs = attributesIfExists(localPath.resolve(path));
+            } else if (remoteAttrs == null) {
+                remoteAttrs = attributesIfExists(remotePath.resolve(path));
+            }
 
-            FileInfo localFile = new FileInfo(
-                    local,
-                    path.getFileName().toString(),
-                    localExists && !localIsDirectory ? Files.getLastModifiedTime(local) : null,
-                    localExists && !localIsDirectory ? Files.size(local) : null,
-                    localIsDirectory,
-                    localExists && !localIsDirectory,
-                    true
-            );
-            FileInfo remoteFile = new FileInfo(
-                    remote,
-                    path.getFileName().toString(),
-                    remoteExists && !remoteIsDirectory ? Files.getLastModifiedTime(remote) : null,
-                    remoteExists && !remoteIsDirectory ? Files.size(remote) : null,
-                    remoteIsDirectory,
-                    remoteExists && !remoteIsDirectory,
-                    false
-            );
+            FileInfo localFile = fileInfo(localPath.resolve(path), localAttrs, true);
+            FileInfo remoteFile = fileInfo(remotePath.resolve(path), remoteAttrs, false);
 
             long localTs = localFile.lastModified == null ? 0 : localFile.lastModified.toMillis();
             long remoteTs = remoteFile.lastModified == null ? 0 : remoteFile.lastModified.toMillis();
 
-            long prevLocal = hasFile ? prevLocalTs.getOrDefault(path, LastTs.NONE).ts : localTs;
-            long prevRemote = hasFile ? prevRemoteTs.getOrDefault(path, LastTs.NONE).ts : remoteTs;
+            long prevLocal = lastSync.ts(path, true, localTs);
+            long prevRemote = lastSync.ts(path, false, remoteTs);
 
             boolean remoteAndLocalSame = compare(localTs, remoteTs) == 0;
+            boolean sameContent = false;
+            if (!remoteAndLocalSame && localFile.isFile && remoteFile.isFile) {
+                // null while hashing is pending, timestamps decide till then
+                ContentHash localHash = hashes.get(localFile.path, localAttrs);
+                ContentHash remoteHash = hashes.get(remoteFile.path, remoteAttrs);
+                sameContent = localHash != null && localHash.equals(remoteHash);
+                remoteAndLocalSame = sameContent;
+            }
 
             if (remoteAndLocalSame) {
-                prevLocalTs.remove(path);
-                prevRemoteTs.remove(path);
-                updated.add(new LastTs(path.toString(), localTs, true));
-                updated.add(new LastTs(path.toString(), remoteTs, false));
+                lastSync.put(path, true, localTs);
+                lastSync.put(path, false, remoteTs);
+                synced.add(path);
             }
 
-            TreeItem<Item> parent = path.getParent() == null ? rootItem : expandedTree.get(path.getParent());
-            TreeItem<Item> item = new TreeItem<>(new Item(localFile, remoteFile, prevLocal, prevRemote));
+            // the parent of a rescanned subtree is not a part of it
+            TreeItem<Item> parent = expandedTree.getOrDefault(path.getParent(), rootItem);
+            TreeItem<Item> item = new TreeItem<>(new Item(localFile, remoteFile, prevLocal, prevRemote, sameContent));
             parent.getChildren().add(item);
             expandedTree.put(path, item);
         }
 
-        // fixme now != prev
-        prevLocalTs.values().removeIf(value -> !Files.exists(remotePath.resolve(value.relativePath)));
-        prevRemoteTs.values().removeIf(value -> !Files.exists(localPath.resolve(value.relativePath)));
+        return synced;
+    }
 
-        Set<LastTs> nowSync = new HashSet<>();
-        nowSync.addAll(prevLocalTs.values());
-        nowSync.addAll(prevRemoteTs.values());
-        nowSync.addAll(updated);
-        if (!prevSync.equals(nowSync)) {
-            Files.write(lastSyncTs, nowSync.stream().map(LastTs::toLine).toList());
+    private void watch(Path root, Map<Path, BasicFileAttributes> files) {
+        for (Map.Entry<Path, BasicFileAttributes> entry : files.entrySet()) {
+            if (!entry.getValue().isDirectory()) {
+                continue;
+            }
+            try {
+                // registering the same directory again keeps the same key
+                root.resolve(entry.getKey()).register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (NoSuchFileException ignored) {
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
+    }
 
-        return rootItem;
+    private static Pattern ignorePattern(Properties cfg, String property) {
+        String ignoreCommon = cfg.getProperty("ignore.common", "$^");
+        return Pattern.compile("(" + cfg.getProperty(property, "$^") + ")|(" + ignoreCommon + ")");
     }
 
     private TreeItem<Item> loadTree(Path path) {
         try {
-            String ignoreCommon = cfg.getProperty("ignore.common", "$^");
-            Pattern ignoreLocal = Pattern.compile("(" + cfg.getProperty("ignore.local", "$^") + ")|(" + ignoreCommon + ")");
-
             FileInfo info = new FileInfo(path, "Game", Files.getLastModifiedTime(path), null, true, false, true);
             TreeItem<Item> rootItem = new TreeItem<>(new Item(info, info));
-            List<Path> allPaths;
+            Map<Path, BasicFileAttributes> allPaths = scan(path, path, ignoreLocal);
             Map<Path, TreeItem<Item>> expandedTree = new HashMap<>();
 
-            try (Stream<Path> w1 = Files.walk(path)) {
-                allPaths = w1.filter(p -> !ignoreLocal.matcher(p.toAbsolutePath().normalize().toString()).matches())
-                        .map(path::relativize)
-                        .toList();
-            }
-
-            for (Path p : allPaths) {
+            for (Map.Entry<Path, BasicFileAttributes> entry : allPaths.entrySet()) {
+                Path p = entry.getKey();
                 if (p.getFileName().toString().isEmpty()) {
                     expandedTree.put(p, rootItem);
                     continue;
                 }
 
-                Path local = path.resolve(p);
-
-                boolean localExists = Files.exists(local);
-                boolean localIsDirectory = Files.isDirectory(local);
-                FileInfo file = new FileInfo(
-                        local,
-                        p.getFileName().toString(),
-                        localExists && !localIsDirectory ? Files.getLastModifiedTime(local) : null,
-                        localExists && !localIsDirectory ? Files.size(local) : null,
-                        localIsDirectory,
-                        localExists && !localIsDirectory,
-                        true
-                );
+                FileInfo file = fileInfo(path.resolve(p), entry.getValue(), true);
 
                 TreeItem<Item> parent = p.getParent() == null ? rootItem : expandedTree.get(p.getParent());
                 TreeItem<Item> item = new TreeItem<>(new Item(file, file));
 
-                if (localExists && !localIsDirectory) {
+                if (file.isFile) {
                     if (LodType.forPath(p) != null) {
                         expandLod(item);
                     }
@@ -1866,22 +2389,74 @@ public class DiffUi extends Application {
         }
     }
 
-    private Set<Path> loadAllPaths() throws IOException {
-        String ignoreCommon = cfg.getProperty("ignore.common", "$^");
-        Pattern ignoreLocal = Pattern.compile("(" + cfg.getProperty("ignore.local", "$^") + ")|(" + ignoreCommon + ")");
-        Pattern ignoreRemote = Pattern.compile("(" + cfg.getProperty("ignore.remote", "$^") + ")|(" + ignoreCommon + ")");
+    /**
+     * Walks the start file or directory once, reading attributes of every entry together with the listing.
+     *
+     * @return attributes by path relative to the root, in walk order, the root itself is an empty path,
+     * nothing if the start does not exist
+     */
+    private static Map<Path, BasicFileAttributes> scan(Path root, Path start, Pattern ignore) throws IOException {
+        Map<Path, BasicFileAttributes> result = new LinkedHashMap<>();
+        if (Files.notExists(start, LinkOption.NOFOLLOW_LINKS)) {
+            return result;
+        }
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                add(dir, attrs);
+                return FileVisitResult.CONTINUE;
+            }
 
-        List<Path> localPaths = new ArrayList<>();
-        List<Path> remotePaths = new ArrayList<>();
-        try (Stream<Path> w1 = Files.walk(localPath); Stream<Path> w2 = Files.walk(remotePath)) {
-            w1.filter(p -> !ignoreLocal.matcher(p.toAbsolutePath().normalize().toString()).matches()).forEach(l -> localPaths.add(localPath.relativize(l)));
-            w2.filter(p -> !ignoreRemote.matcher(p.toAbsolutePath().normalize().toString()).matches()).forEach(l -> remotePaths.add(remotePath.relativize(l)));
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                add(file, attrs);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                // removed while walking, the watcher will report it
+                if (exc instanceof NoSuchFileException) {
+                    return FileVisitResult.CONTINUE;
+                }
+                throw exc;
+            }
+
+            private void add(Path path, BasicFileAttributes attrs) {
+                if (!FileTransfer.isTemporary(path) && !ignore.matcher(path.toAbsolutePath().normalize().toString()).matches()) {
+                    result.put(root.relativize(path), attrs);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return attributes of a path that is not in the scan of its side, null if it does not exist
+     */
+    private static BasicFileAttributes attributesIfExists(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
         }
+    }
 
-        Set<Path> allPaths = new TreeSet<>();
-        allPaths.addAll(remotePaths);
-        allPaths.addAll(localPaths);
-        return allPaths;
+    private static FileInfo fileInfo(Path path, BasicFileAttributes attrs, boolean isLocal) {
+        boolean exists = attrs != null;
+        boolean isDirectory = exists && attrs.isDirectory();
+        return new FileInfo(
+                path,
+                path.getFileName().toString(),
+                exists && !isDirectory ? attrs.lastModifiedTime() : null,
+                exists && !isDirectory ? attrs.size() : null,
+                isDirectory,
+                exists && !isDirectory,
+                isLocal
+        );
     }
 
     private void show(TreeItem<Item> treeItem) {
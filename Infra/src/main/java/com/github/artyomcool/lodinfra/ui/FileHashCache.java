@@ -0,0 +1,153 @@
+package com.github.artyomcool.lodinfra.ui;
+
+import com.github.artyomcool.lodinfra.ContentHash;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Content hashes of files, persisted between runs and keyed by path, size and modification time, so a file
+ * is hashed again only after it is changed. LOD archives are hashed as a whole like any other file: an edited
+ * entry may keep its offset and sizes, so the entry table alone can't tell that the content is the same.
+ */
+public class FileHashCache {
+
+    // LHC2, written in big endian; LHC1 files have LOD hashes of entry tables only, so they are not read
+    private static final int MAGIC = 0x4c484332;
+    private static final int BATCH = 256;
+
+    private final Path file;
+    private final Consumer<Set<Path>> onHashed;
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+    private final Set<Path> queued = ConcurrentHashMap.newKeySet();
+    private final Set<Path> hashed = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "DiffUi hash thread");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean dirty;
+
+    /**
+     * @param hash  null if the file could not be read, it is not retried till the file is changed
+     */
+    private record Entry(long size, long lastModified, ContentHash hash) {
+    }
+
+    /**
+     * @param onHashed  receives paths with new hashes in batches, called from the hash thread
+     */
+    public FileHashCache(Path file, Consumer<Set<Path>> onHashed) {
+        this.file = file;
+        this.onHashed = onHashed;
+        load();
+    }
+
+    /**
+     * @return hash of the file, or null if it is not known yet, then the file is hashed in background
+     */
+    public ContentHash get(Path path, BasicFileAttributes attrs) {
+        Entry entry = entries.get(path);
+        if (entry != null && entry.size == attrs.size() && entry.lastModified == attrs.lastModifiedTime().toMillis()) {
+            return entry.hash;
+        }
+        if (queued.add(path)) {
+            pending.incrementAndGet();
+            executor.execute(() -> hash(path));
+        }
+        return null;
+    }
+
+    private void hash(Path path) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            ContentHash hash = null;
+            try {
+                hash = ContentHash.of(path);
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            }
+            entries.put(path, new Entry(attrs.size(), attrs.lastModifiedTime().toMillis(), hash));
+            dirty = true;
+        } catch (NoSuchFileException ignored) {
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        queued.remove(path);
+        hashed.add(path);
+
+        if (pending.decrementAndGet() == 0 || hashed.size() >= BATCH) {
+            Set<Path> batch = new HashSet<>(hashed);
+            hashed.removeAll(batch);
+            save();
+            onHashed.accept(batch);
+        }
+    }
+
+    private void load() {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (input.readInt() != MAGIC) {
+                return;
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                Path path = Path.of(input.readUTF());
+                long size = input.readLong();
+                long lastModified = input.readLong();
+                ContentHash hash = new ContentHash(input.readLong(), input.readLong());
+                entries.put(path, new Entry(size, lastModified, hash));
+            }
+        } catch (NoSuchFileException ignored) {
+        } catch (IOException | InvalidPathException e) {
+            // cache is optional, everything will be hashed again
+            e.printStackTrace();
+        }
+    }
+
+    private void save() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                Map<Path, Entry> known = Map.copyOf(entries);
+                int count = 0;
+                for (Entry entry : known.values()) {
+                    if (entry.hash != null) {
+                        count++;
+                    }
+                }
+                output.writeInt(MAGIC);
+                output.writeInt(count);
+                for (Map.Entry<Path, Entry> e : known.entrySet()) {
+                    Entry entry = e.getValue();
+                    if (entry.hash == null) {
+                        continue;
+                    }
+                    output.writeUTF(e.getKey().toString());
+                    output.writeLong(entry.size);
+                    output.writeLong(entry.lastModified);
+                    output.writeLong(entry.hash.lo());
+                    output.writeLong(entry.hash.hi());
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.github.artyomcool.lodinfra.ui;
+
+import com.github.artyomcool.lodinfra.ContentHash;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Copies and deletes files on a few background threads. A file is copied into a temporary file next to the target,
+ * optionally verified against the source and then moved over the target, so the target is never half-written.
+ */
+public class FileTransfer {
+
+    private static final String TEMP_PREFIX = ".";
+    private static final String TEMP_SUFFIX = ".transfer";
+
+    private final ExecutorService executor;
+    private final boolean verify;
+
+    public FileTransfer(int threads, boolean verify) {
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "DiffUi transfer thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.verify = verify;
+    }
+
+    /**
+     * @param from  source file, null to delete the target
+     */
+    public record Task(Path from, Path to) {
+    }
+
+    public record Failure(Task task, Exception error) {
+    }
+
+    public class Transfer {
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private final CompletableFuture<List<Failure>> done;
+
+        private Transfer(List<Task> tasks, IntConsumer progress) {
+            List<Failure> failures = Collections.synchronizedList(new ArrayList<>());
+            AtomicInteger finished = new AtomicInteger();
+            CompletableFuture<?>[] futures = new CompletableFuture<?>[tasks.size()];
+            for (int i = 0; i < futures.length; i++) {
+                Task task = tasks.get(i);
+                futures[i] = CompletableFuture.runAsync(() -> {
+                    if (cancelled.get()) {
+                        return;
+                    }
+                    try {
+                        run(task);
+                    } catch (IOException | RuntimeException e) {
+                        failures.add(new Failure(task, e));
+                    }
+                    progress.accept(finished.incrementAndGet());
+                }, executor);
+            }
+            done = CompletableFuture.allOf(futures).thenApply(v -> failures);
+        }
+
+        /**
+         * Tasks that are not started yet are skipped, started ones are finished.
+         */
+        public void cancel() {
+            cancelled.set(true);
+        }
+
+        /**
+         * @return completed with failed tasks when all the tasks are finished or skipped
+         */
+        public CompletableFuture<List<Failure>> done() {
+            return done;
+        }
+    }
+
+    /**
+     * Temporary files live in the trees being synced, so scans and watchers should skip them.
+     */
+    public static boolean isTemporary(Path path) {
+        Path name = path.getFileName();
+        return name != null && name.toString().startsWith(TEMP_PREFIX) && name.toString().endsWith(TEMP_SUFFIX);
+    }
+
+    /**
+     * @param progress  receives count of finished tasks, called from transfer threads
+     */
+    public Transfer start(List<Task> tasks, IntConsumer progress) {
+        return new Transfer(tasks, progress);
+    }
+
+    private void run(Task task) throws IOException {
+        if (task.from == null) {
+            Files.deleteIfExists(task.to);
+            return;
+        }
+        if (Files.isDirectory(task.from)) {
+            Files.createDirectories(task.to);
+            return;
+        }
+
+        Path parent = task.to.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tmp = Files.createTempFile(parent, TEMP_PREFIX + task.to.getFileName(), TEMP_SUFFIX);
+        try {
+            Files.copy(task.from, tmp, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            // read in chunks, not mapped: a mapped file can't be moved on Windows till the mapping is collected
+            if (verify && !ContentHash.of(task.from).equals(ContentHash.of(tmp))) {
+                throw new IOException("Copy of " + task.from + " differs from the source");
+            }
+            try {
+                Files.move(tmp, task.to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, task.to, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -1,91 +1,69 @@
 package com.github.artyomcool.lodinfra.ui;
 
 import com.github.artyomcool.lodinfra.Resource;
+import com.github.artyomcool.lodinfra.Utils;
 import com.github.artyomcool.lodinfra.h3common.Archive;
 import com.github.artyomcool.lodinfra.h3common.DefInfo;
 import com.github.artyomcool.lodinfra.h3common.LodFile;
+import com.github.artyomcool.lodinfra.h3common.NameIndex;
+import com.github.artyomcool.lodinfra.h3common.PixelKernels;
 
 import java.io.IOException;
 import java.lang.ref.Cleaner;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class ImgFilesUtils {
 
-    private static final Method unmapperMethod;
-
-    static {
-        try {
-            Class<?> cl = Class.forName("java.nio.MappedByteBuffer");
-            unmapperMethod = cl.getDeclaredMethod("unmapper");
-            unmapperMethod.setAccessible(true);
-        } catch (Throwable e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
+    private static final Map<Path, LodIndex> LOD_INDEXES = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, LodIndex> eldest) {
+            return size() > 32;
         }
-    }
-
+    });
 
     public static void premultiply(int[] array) {
-        for (int i = 0; i < array.length; i++) {
-            array[i] = premultiply(array[i]);
-        }
+        PixelKernels.premultiply(array, 0, array.length);
     }
 
     public static void unmultiply(int[] array) {
-        for (int i = 0; i < array.length; i++) {
-            array[i] = unmultiply(array[i]);
-        }
+        PixelKernels.unmultiply(array, 0, array.length);
     }
 
     public static int premultiply(int nonpre) {
-        int a = nonpre >>> 24;
-        if (a == 0xff) return nonpre;
-        if (a == 0x00) return 0;
-        int r = (nonpre >> 16) & 0xff;
-        int g = (nonpre >> 8) & 0xff;
-        int b = (nonpre) & 0xff;
-        r = (r * a + 127) / 0xff;
-        g = (g * a + 127) / 0xff;
-        b = (b * a + 127) / 0xff;
-        return (a << 24) | (r << 16) | (g << 8) | b;
+        return PixelKernels.premultiply(nonpre);
     }
 
     public static int unmultiply(int pre) {
-        int a = pre >>> 24;
-        if (a == 0xff || a == 0x00) return pre;
-        int r = (pre >> 16) & 0xff;
-        int g = (pre >> 8) & 0xff;
-        int b = (pre) & 0xff;
-        int halfa = a >> 1;
-        r = (r >= a) ? 0xff : (r * 0xff + halfa) / a;
-        g = (g >= a) ? 0xff : (g * 0xff + halfa) / a;
-        b = (b >= a) ? 0xff : (b * 0xff + halfa) / a;
-        return (a << 24) | (r << 16) | (g << 8) | b;
+        return PixelKernels.unmultiply(pre);
     }
 
     public static <T> T processFile(Path file, T def, ImgFilesUtils.Processor<T> processor) {
         try {
             Path lodPath = Resource.pathOfLod(file);
             if (lodPath != null) {
-                try (FileChannel channel = FileChannel.open(lodPath)) {
-                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
-                    buffer.order(ByteOrder.LITTLE_ENDIAN);
-                    Archive lod = LodFile.parse(lodPath, buffer);
-                    String name = Resource.fileNamePossibleInLod(file);
-                    for (Archive.Element subFile : lod.files()) {
-                        if (name.equals(subFile.name())) {
-                            return processor.process(subFile.asByteBuffer());
-                        }
+                try (Archive lod = LodFile.map(lodPath)) {
+                    BasicFileAttributes attributes = Files.readAttributes(lodPath, BasicFileAttributes.class);
+                    LodIndex cached = LOD_INDEXES.get(lodPath);
+                    if (cached != null && cached.matches(attributes)) {
+                        lod.reuseNameIndex(cached.index);
+                    } else {
+                        LOD_INDEXES.put(lodPath, new LodIndex(attributes.lastModifiedTime(), attributes.size(), lod.nameIndex()));
                     }
-                    return def;
+
+                    Archive.Element subFile = lod.find(Resource.fileNamePossibleInLod(file));
+                    return subFile == null ? def : processor.process(subFile.asByteBuffer());
                 }
             } else {
                 MappedByteBuffer buffer = null;
@@ -95,15 +73,7 @@ public class ImgFilesUtils {
                     return processor.process(channel, buffer);
                 } finally {
                     if (buffer != null) {
-                        try {
-                            Object unmapper = unmapperMethod.invoke(buffer);
-                            Method unmap = unmapper.getClass().getDeclaredMethod("unmap");
-                            unmap.setAccessible(true);
-                            unmap.invoke(unmapper);
-                        } catch (IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
-                            e.printStackTrace();
-                            throw new RuntimeException(e);
-                        }
+                        Utils.unmap(buffer);
                     }
                 }
             }
@@ -253,17 +223,7 @@ public class ImgFilesUtils {
     }
 
     public static int colorDifference(int c1, int c2) {
-        int a1 = (c1 >>> 24) & 0xff;
-        int a2 = (c2 >>> 24) & 0xff;
-        int r1 = (c1 >>> 16) & 0xff;
-        int r2 = (c2 >>> 16) & 0xff;
-        int g1 = (c1 >>> 8) & 0xff;
-        int g2 = (c2 >>> 8) & 0xff;
-        int b1 = (c1 >>> 0) & 0xff;
-        int b2 = (c2 >>> 0) & 0xff;
-
-        int delta2 = Math.max(Math.max(diff2(a1, a2), diff2(r1, r2)), Math.max(diff2(g1, g2), diff2(b1, b2)));
-        return (int) Math.sqrt(delta2);
+        return PixelKernels.colorDifference(c1, c2);
     }
 
     public static int colorDifferenceForCompare(int c1, int c2) {
@@ -284,31 +244,17 @@ public class ImgFilesUtils {
     }
 
     public static int pcxToD32Color(int pixel) {
-        return switch (pixel) {
-            case 0xFF00FFFF -> 0x00000000;
-            case 0xFFFF96FF -> 0x00FF0002;
-            case 0xFFFF64FF -> 0x00FF0001;
-            case 0xFFFF32FF -> 0x00FF0003;
-            case 0xFFFF00FF -> 0x00FF0004;
-            case 0xFFFFFF00 -> 0x00FF0010;
-            case 0xFFB400FF -> 0x00FF0014;
-            case 0xFF00FF00 -> 0x00FF0012;
-            default -> pixel;
-        };
+        return PixelKernels.pcxToD32Color(pixel);
     }
 
     public static int d32ToPcxColor(boolean cleanPixels, int pixel) {
-        return switch (pixel) {
-            case 0x00000000 -> 0xFF00FFFF;
-            case 0x00FF0002 -> 0xFFFF96FF;
-            case 0x00FF0001 -> 0xFFFF64FF;
-            case 0x00FF0003 -> 0xFFFF32FF;
-            case 0x00FF0004 -> 0xFFFF00FF;
-            case 0x00FF0010 -> 0xFFFFFF00;
-            case 0x00FF0014 -> 0xFFB400FF;
-            case 0x00FF0012 -> 0xFF00FF00;
-            default -> cleanPixels && pixel >>> 24 == 0 ? 0x00000000 : pixel;
-        };
+        return PixelKernels.d32ToPcxColor(cleanPixels, pixel);
+    }
+
+    private record LodIndex(FileTime lastModified, long size, NameIndex index) {
+        boolean matches(BasicFileAttributes attributes) {
+            return attributes.size() == size && attributes.lastModifiedTime().equals(lastModified);
+        }
     }
 
     public interface Processor<R> {
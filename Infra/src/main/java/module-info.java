@@ -5,6 +5,8 @@ module LodInfra {
     requires org.apache.commons.text;
     requires jdk.localedata;
     requires java.prefs;
+    requires java.xml;
+    requires static jdk.incubator.vector;     // optional, enabled by --add-modules, see PixelKernels
     requires pngj;
     requires poi;
 
@@ -0,0 +1,127 @@
+package com.github.artyomcool.lodinfra;
+
+import com.github.artyomcool.lodinfra.h3common.Archive;
+import com.github.artyomcool.lodinfra.h3common.LodFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * In place updates are read back with {@link LodFile#load}, so offsets and sizes written to the header are checked
+ * against the data the same way the game reads them.
+ */
+class LodFilePatchTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void updateInPlaceRoundTrips() throws IOException {
+        Path lod = dir.resolve("test.lod");
+        Map<String, String> texts = new LinkedHashMap<>();
+        texts.put("a.txt", "first");
+        texts.put("b.txt", "second");
+        texts.put("c.txt", "third ".repeat(100));
+        write(lod, texts);
+        long originalSize = Files.size(lod);
+
+        Map<String, String> patch = new LinkedHashMap<>();
+        patch.put("b.txt", "second, changed");
+        // grows the header table over the start of the original data
+        for (int i = 0; i < 10; i++) {
+            patch.put("n" + i + ".txt", "new " + i);
+        }
+        try (ResourcePreprocessor preprocessor = new ResourcePreprocessor(0);
+             LodFilePatch lodPatch = LodFilePatch.fromPath(lod, preprocessor)) {
+            lodPatch.retainOriginal(texts.keySet());
+            patch.forEach((name, text) -> lodPatch.addPatch(Resource.fromString(lod, null, name, text)));
+            assertTrue(lodPatch.updateInPlace(0.5));
+        }
+
+        texts.putAll(patch);
+        assertContent(lod, texts);
+        assertTrue(Files.size(lod) > originalSize);
+        assertFalse(Files.exists(LodFilePatch.headerBackupPath(lod)));
+    }
+
+    @Test
+    void updateInPlaceRefusesTooMuchDeadSpace() throws IOException {
+        Path lod = dir.resolve("test.lod");
+        Map<String, String> texts = new LinkedHashMap<>();
+        texts.put("a.txt", "a".repeat(1000));
+        texts.put("b.txt", "b".repeat(1000));
+        write(lod, texts);
+        byte[] original = Files.readAllBytes(lod);
+
+        // the replaced 1000 bytes become dead, that is about a third of the updated file
+        for (double ratio : new double[]{0.3, 0.4}) {
+            try (ResourcePreprocessor preprocessor = new ResourcePreprocessor(0);
+                 LodFilePatch lodPatch = LodFilePatch.fromPath(lod, preprocessor)) {
+                lodPatch.retainOriginal(texts.keySet());
+                lodPatch.addPatch(Resource.fromString(lod, null, "a.txt", "c".repeat(1000)));
+                if (ratio == 0.3) {
+                    assertFalse(lodPatch.updateInPlace(ratio));
+                    assertArrayEquals(original, Files.readAllBytes(lod));
+                } else {
+                    assertTrue(lodPatch.updateInPlace(ratio));
+                }
+            }
+        }
+
+        texts.put("a.txt", "c".repeat(1000));
+        assertContent(lod, texts);
+    }
+
+    @Test
+    void interruptedUpdateIsRolledBack() throws IOException {
+        Path lod = dir.resolve("test.lod");
+        Map<String, String> texts = new LinkedHashMap<>();
+        texts.put("a.txt", "first");
+        texts.put("b.txt", "second");
+        write(lod, texts);
+        byte[] original = Files.readAllBytes(lod);
+
+        // as if the process died while writing a new header after appending data
+        try (FileChannel channel = FileChannel.open(lod, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            LodFilePatch.backupHeader(channel, lod, original.length + 100);
+            channel.write(ByteBuffer.wrap(new byte[200]), original.length);
+            channel.write(ByteBuffer.wrap(new byte[150]), 0);
+        }
+
+        try (ResourcePreprocessor preprocessor = new ResourcePreprocessor(0);
+             LodFilePatch ignored = LodFilePatch.fromPath(lod, preprocessor)) {
+            assertArrayEquals(original, Files.readAllBytes(lod));
+        }
+        assertFalse(Files.exists(LodFilePatch.headerBackupPath(lod)));
+        assertContent(lod, texts);
+    }
+
+    private static void write(Path lod, Map<String, String> texts) throws IOException {
+        try (ResourcePreprocessor preprocessor = new ResourcePreprocessor(0);
+             LodFilePatch lodPatch = LodFilePatch.fromPath(lod, preprocessor);
+             FileChannel channel = FileChannel.open(lod, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            texts.forEach((name, text) -> lodPatch.addPatch(Resource.fromString(lod, null, name, text)));
+            lodPatch.serialize(channel);
+        }
+    }
+
+    private static void assertContent(Path lod, Map<String, String> texts) throws IOException {
+        Archive archive = LodFile.load(lod);
+        assertEquals(texts.size(), archive.files().size());
+        texts.forEach((name, text) -> {
+            Archive.Element element = archive.find(name);
+            assertNotNull(element, name);
+            assertEquals(ByteBuffer.wrap(text.getBytes(Utils.cp1251)), element.asByteBuffer(), name);
+        });
+    }
+}
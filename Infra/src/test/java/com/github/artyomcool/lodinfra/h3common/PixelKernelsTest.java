@@ -0,0 +1,327 @@
+package com.github.artyomcool.lodinfra.h3common;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Kernels are compared with the formulas they replaced and vector loops with scalar ones, results must be identical.
+ */
+class PixelKernelsTest {
+
+    private static final int[] SPECIAL_D32 = {
+            0x00000000, 0x00FF0002, 0x00FF0001, 0x00FF0003, 0x00FF0004, 0x00FF0010, 0x00FF0014, 0x00FF0012
+    };
+    private static final int[] SPECIAL_PCX = {
+            0xFF00FFFF, 0xFFFF96FF, 0xFFFF64FF, 0xFFFF32FF, 0xFFFF00FF, 0xFFFFFF00, 0xFFB400FF, 0xFF00FF00
+    };
+
+    // odd length and start, so vector loops leave a tail for the scalar ones
+    private static final int LENGTH = 800 * 600 + 13;
+    private static final int FROM = 5;
+
+    @Test
+    void premultiplyMatchesOldFormula() {
+        for (int a = 0; a < 256; a++) {
+            for (int c = 0; c < 256; c++) {
+                int pixel = a << 24 | c << 16 | (255 - c) << 8 | (c * 7 & 0xff);
+                assertEquals(oldPremultiply(pixel), PixelKernels.premultiply(pixel), () -> Integer.toHexString(pixel));
+            }
+        }
+        for (int pixel : pixels(1)) {
+            assertEquals(oldPremultiply(pixel), PixelKernels.premultiply(pixel), () -> Integer.toHexString(pixel));
+        }
+    }
+
+    @Test
+    void unmultiplyMatchesOldFormula() {
+        for (int a = 0; a < 256; a++) {
+            for (int c = 0; c < 256; c++) {
+                int pixel = a << 24 | c << 16 | (255 - c) << 8 | (c * 7 & 0xff);
+                assertEquals(oldUnmultiply(pixel), PixelKernels.unmultiply(pixel), () -> Integer.toHexString(pixel));
+            }
+        }
+        for (int pixel : pixels(2)) {
+            assertEquals(oldUnmultiply(pixel), PixelKernels.unmultiply(pixel), () -> Integer.toHexString(pixel));
+        }
+    }
+
+    @Test
+    void specialColorsMatchOldSwitches() {
+        for (int pixel : pixels(3)) {
+            assertEquals(oldD32ToPcxColor(false, pixel), PixelKernels.d32ToPcxColor(false, pixel));
+            assertEquals(oldD32ToPcxColor(true, pixel), PixelKernels.d32ToPcxColor(true, pixel));
+            assertEquals(oldPcxToD32Color(pixel), PixelKernels.pcxToD32Color(pixel));
+        }
+    }
+
+    @Test
+    void colorDifferenceMatchesOldFormula() {
+        int[] one = pixels(4);
+        int[] two = pixels(5);
+        for (int i = 0; i < one.length; i++) {
+            assertEquals(oldColorDifference(one[i], two[i]), PixelKernels.colorDifference(one[i], two[i]));
+            assertEquals(0, PixelKernels.colorDifference(one[i], one[i]));
+        }
+    }
+
+    @Test
+    void boundsMatchOldScan() {
+        Random random = new Random(6);
+        int background = SPECIAL_PCX[0];
+        for (int n = 0; n < 200; n++) {
+            int w = 1 + random.nextInt(70);
+            int h = 1 + random.nextInt(70);
+            int[] pixels = new int[w * h + 3];
+            Arrays.fill(pixels, background);
+            int dots = random.nextInt(4);
+            for (int d = 0; d < dots; d++) {
+                pixels[3 + random.nextInt(w * h)] = random.nextInt();
+            }
+            IntBuffer buffer = IntBuffer.wrap(pixels).position(3).slice();
+
+            int[] expected = oldBounds(w, h, buffer.duplicate(), background);
+            assertArrayEquals(expected, PixelKernels.bounds(w, h, buffer, background));
+        }
+    }
+
+    @Test
+    void containsAnyMatchesFullScan() {
+        Random random = new Random(7);
+        for (int n = 0; n < 200; n++) {
+            int[] pixels = new int[1 + random.nextInt(300)];
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = random.nextInt(3) == 0 ? SPECIAL_D32[random.nextInt(4)] : 0xff000000 | random.nextInt();
+            }
+            if (random.nextBoolean()) {
+                pixels[random.nextInt(pixels.length)] = SPECIAL_PCX[random.nextInt(SPECIAL_PCX.length)];
+            }
+            int from = random.nextInt(pixels.length);
+            IntBuffer buffer = IntBuffer.wrap(pixels).position(from).slice();
+
+            boolean expected = false;
+            for (int i = from; i < pixels.length; i++) {
+                for (int color : SPECIAL_PCX) {
+                    expected |= pixels[i] == color;
+                }
+            }
+            assertEquals(expected, PixelKernels.containsAny(buffer, SPECIAL_PCX));
+        }
+    }
+
+    @Test
+    void arrayKernelsMatchPixelKernels() {
+        int[] pixels = pixels(8);
+
+        int[] premultiplied = pixels.clone();
+        PixelKernels.premultiply(premultiplied, FROM, LENGTH);
+        int[] unmultiplied = pixels.clone();
+        PixelKernels.unmultiply(unmultiplied, FROM, LENGTH);
+        int[] pcx = pixels.clone();
+        PixelKernels.d32ToPcxColors(pcx, FROM, LENGTH, false);
+        int[] cleanPcx = pixels.clone();
+        PixelKernels.d32ToPcxColors(cleanPcx, FROM, LENGTH, true);
+
+        for (int i = 0; i < FROM; i++) {
+            assertEquals(pixels[i], premultiplied[i]);
+            assertEquals(pixels[i], unmultiplied[i]);
+            assertEquals(pixels[i], pcx[i]);
+            assertEquals(pixels[i], cleanPcx[i]);
+        }
+        for (int i = FROM; i < LENGTH; i++) {
+            assertEquals(PixelKernels.premultiply(pixels[i]), premultiplied[i]);
+            assertEquals(PixelKernels.unmultiply(pixels[i]), unmultiplied[i]);
+            assertEquals(PixelKernels.d32ToPcxColor(false, pixels[i]), pcx[i]);
+            assertEquals(PixelKernels.d32ToPcxColor(true, pixels[i]), cleanPcx[i]);
+        }
+
+        int[] other = pixels(9);
+        int[] difference = new int[LENGTH];
+        PixelKernels.colorDifference(pixels, other, difference, LENGTH);
+        for (int i = 0; i < LENGTH; i++) {
+            assertEquals(PixelKernels.colorDifference(pixels[i], other[i]), difference[i]);
+        }
+    }
+
+    @Test
+    void vectorKernelsMatchScalar() {
+        assumeTrue(PixelKernels.VECTORIZED, "jdk.incubator.vector is not available");
+
+        int[] pixels = pixels(10);
+
+        int[] premultiplied = pixels.clone();
+        int stop = VectorKernels.premultiply(premultiplied, FROM, LENGTH);
+        assertTrue(stop > FROM && stop <= LENGTH);
+        for (int i = FROM; i < stop; i++) {
+            assertEquals(PixelKernels.premultiply(pixels[i]), premultiplied[i]);
+        }
+
+        int[] unmultiplied = pixels.clone();
+        stop = VectorKernels.unmultiply(unmultiplied, FROM, LENGTH);
+        assertTrue(stop > FROM && stop <= LENGTH);
+        for (int i = FROM; i < stop; i++) {
+            assertEquals(PixelKernels.unmultiply(pixels[i]), unmultiplied[i]);
+        }
+
+        for (boolean clean : new boolean[]{false, true}) {
+            int[] pcx = pixels.clone();
+            stop = VectorKernels.replaceTransparent(pcx, FROM, LENGTH, SPECIAL_D32, SPECIAL_PCX, clean);
+            assertTrue(stop > FROM && stop <= LENGTH);
+            for (int i = FROM; i < stop; i++) {
+                assertEquals(PixelKernels.d32ToPcxColor(clean, pixels[i]), pcx[i]);
+            }
+        }
+
+        int[] other = pixels(11);
+        int[] difference = new int[LENGTH];
+        stop = VectorKernels.colorDifference(pixels, other, difference, FROM, LENGTH);
+        assertTrue(stop > FROM && stop <= LENGTH);
+        for (int i = FROM; i < stop; i++) {
+            assertEquals(PixelKernels.colorDifference(pixels[i], other[i]), difference[i]);
+        }
+    }
+
+    @Test
+    void vectorSearchesStopAtFirstMatch() {
+        assumeTrue(PixelKernels.VECTORIZED, "jdk.incubator.vector is not available");
+
+        int background = SPECIAL_PCX[0];
+        for (int match = FROM; match < FROM + 100; match++) {
+            int[] pixels = new int[FROM + 100];
+            Arrays.fill(pixels, background);
+            pixels[match] = SPECIAL_PCX[3];
+
+            int stop = VectorKernels.indexOfOther(pixels, FROM, pixels.length, background);
+            assertTrue(stop <= match, "skipped a pixel at " + match);
+            for (int i = FROM; i < stop; i++) {
+                assertEquals(background, pixels[i]);
+            }
+
+            stop = VectorKernels.indexOfAny(pixels, FROM, pixels.length, new int[]{SPECIAL_PCX[2], SPECIAL_PCX[3]});
+            assertTrue(stop <= match, "skipped a pixel at " + match);
+        }
+    }
+
+    /**
+     * Mostly random colors with extremes of alpha and special colors, which take separate branches.
+     */
+    private static int[] pixels(long seed) {
+        Random random = new Random(seed);
+        int[] pixels = new int[LENGTH];
+        for (int i = 0; i < pixels.length; i++) {
+            int color = random.nextInt();
+            pixels[i] = switch (random.nextInt(8)) {
+                case 0 -> color & 0x00ffffff;
+                case 1 -> color | 0xff000000;
+                case 2 -> SPECIAL_D32[random.nextInt(SPECIAL_D32.length)];
+                case 3 -> SPECIAL_PCX[random.nextInt(SPECIAL_PCX.length)];
+                default -> color;
+            };
+        }
+        return pixels;
+    }
+
+    // formulas below are the ones the kernels replaced
+
+    private static int oldPremultiply(int nonpre) {
+        int a = nonpre >>> 24;
+        if (a == 0xff) return nonpre;
+        if (a == 0x00) return 0;
+        int r = (nonpre >> 16) & 0xff;
+        int g = (nonpre >> 8) & 0xff;
+        int b = (nonpre) & 0xff;
+        r = (r * a + 127) / 0xff;
+        g = (g * a + 127) / 0xff;
+        b = (b * a + 127) / 0xff;
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    private static int oldUnmultiply(int pre) {
+        int a = pre >>> 24;
+        if (a == 0xff || a == 0x00) return pre;
+        int r = (pre >> 16) & 0xff;
+        int g = (pre >> 8) & 0xff;
+        int b = (pre) & 0xff;
+        int halfa = a >> 1;
+        r = (r >= a) ? 0xff : (r * 0xff + halfa) / a;
+        g = (g >= a) ? 0xff : (g * 0xff + halfa) / a;
+        b = (b >= a) ? 0xff : (b * 0xff + halfa) / a;
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    private static int oldColorDifference(int c1, int c2) {
+        int a1 = (c1 >>> 24) & 0xff;
+        int a2 = (c2 >>> 24) & 0xff;
+        int r1 = (c1 >>> 16) & 0xff;
+        int r2 = (c2 >>> 16) & 0xff;
+        int g1 = (c1 >>> 8) & 0xff;
+        int g2 = (c2 >>> 8) & 0xff;
+        int b1 = (c1 >>> 0) & 0xff;
+        int b2 = (c2 >>> 0) & 0xff;
+
+        int delta2 = Math.max(Math.max(diff2(a1, a2), diff2(r1, r2)), Math.max(diff2(g1, g2), diff2(b1, b2)));
+        return (int) Math.sqrt(delta2);
+    }
+
+    private static int diff2(int a, int b) {
+        return (a - b) * (a - b);
+    }
+
+    private static int oldPcxToD32Color(int pixel) {
+        return switch (pixel) {
+            case 0xFF00FFFF -> 0x00000000;
+            case 0xFFFF96FF -> 0x00FF0002;
+            case 0xFFFF64FF -> 0x00FF0001;
+            case 0xFFFF32FF -> 0x00FF0003;
+            case 0xFFFF00FF -> 0x00FF0004;
+            case 0xFFFFFF00 -> 0x00FF0010;
+            case 0xFFB400FF -> 0x00FF0014;
+            case 0xFF00FF00 -> 0x00FF0012;
+            default -> pixel;
+        };
+    }
+
+    private static int oldD32ToPcxColor(boolean cleanPixels, int pixel) {
+        return switch (pixel) {
+            case 0x00000000 -> 0xFF00FFFF;
+            case 0x00FF0002 -> 0xFFFF96FF;
+            case 0x00FF0001 -> 0xFFFF64FF;
+            case 0x00FF0003 -> 0xFFFF32FF;
+            case 0x00FF0004 -> 0xFFFF00FF;
+            case 0x00FF0010 -> 0xFFFFFF00;
+            case 0x00FF0014 -> 0xFFB400FF;
+            case 0x00FF0012 -> 0xFF00FF00;
+            default -> cleanPixels && pixel >>> 24 == 0 ? 0x00000000 : pixel;
+        };
+    }
+
+    // scan of DefInfo.calculateTransparent, null instead of the 1x1 box when everything is the background
+    private static int[] oldBounds(int w, int h, IntBuffer pixels, int transparent) {
+        int left = Integer.MAX_VALUE;
+        int top = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE;
+        int bottom = Integer.MIN_VALUE;
+
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int color = pixels.get();
+                if (color != transparent) {
+                    left = Math.min(x, left);
+                    right = Math.max(x, right);
+                    top = Math.min(y, top);
+                    bottom = Math.max(y, bottom);
+                }
+            }
+        }
+
+        if (left == Integer.MAX_VALUE) {
+            return null;
+        }
+        return new int[]{left, top, right, bottom};
+    }
+}